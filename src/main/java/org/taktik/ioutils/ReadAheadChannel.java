@@ -0,0 +1,315 @@
+package org.taktik.ioutils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A channel reading ahead of its consumer on a dedicated I/O thread.
+ * <br>
+ * The I/O thread fills up to depth buffers of readSize bytes in advance, so that a slow read (network storage, cold disk...)
+ * only stalls the consumer when all of them have been consumed. Stalls are counted, see {@link #getStallCount()}.
+ * <br>
+ * When the underlying channel is a {@link SeekableByteChannel}, {@link #position(long)} discards the data read in advance
+ * and restarts reading at the new position. This channel supports a single consumer thread.
+ */
+public class ReadAheadChannel implements SeekableByteChannel {
+	static final Logger log = LoggerFactory.getLogger("readahead");
+
+	private final ReadableByteChannel channel;
+	private final ArrayBlockingQueue<ByteBuffer> free;
+	private final ArrayBlockingQueue<ByteBuffer> filled;
+
+	// Held by the I/O thread while reading, so that the channel is never repositioned during a read
+	private final ReentrantLock ioLock = new ReentrantLock();
+	private final Condition repositioned = ioLock.newCondition();
+	private long generation;
+	private long endOfStreamGeneration = -1;
+
+	private volatile boolean closed;
+	private volatile IOException error;
+	private volatile Thread ioThread;
+
+	// Consumer state
+	private ByteBuffer current;
+	private boolean endOfStream;
+	private long position;
+
+	private volatile long stallCount;
+	private volatile long stallNanos;
+	private volatile long bytesRead;
+
+	private ReadAheadChannel(ReadableByteChannel channel, int readSize, int depth, boolean direct, Executor executor) throws IOException {
+		this.channel = channel;
+		// One more buffer than depth, held by the consumer
+		this.free = new ArrayBlockingQueue<>(depth + 1);
+		this.filled = new ArrayBlockingQueue<>(depth + 1);
+		for (int i = 0; i <= depth; i++) {
+			free.add(direct ? ByteBuffer.allocateDirect(readSize) : ByteBuffer.allocate(readSize));
+		}
+		this.position = channel instanceof SeekableByteChannel ? ((SeekableByteChannel) channel).position() : 0;
+		if (executor != null) {
+			executor.execute(this::readLoop);
+		} else {
+			Thread thread = new Thread(this::readLoop, "readahead");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void readLoop() {
+		ioThread = Thread.currentThread();
+		try {
+			while (!closed) {
+				ByteBuffer buffer = free.take();
+				ioLock.lock();
+				try {
+					if (endOfStreamGeneration == generation) {
+						// Nothing left to read until the channel is repositioned
+						free.add(buffer);
+						repositioned.await();
+						continue;
+					}
+					buffer.clear();
+					try {
+						NIOUtils.read(channel, buffer);
+						// NIOUtils.read only stops early at end of stream
+						if (buffer.hasRemaining()) {
+							endOfStreamGeneration = generation;
+						}
+					} catch (IOException e) {
+						error = e;
+						endOfStreamGeneration = generation;
+					}
+					buffer.flip();
+					bytesRead += buffer.remaining();
+					filled.add(buffer);
+				} finally {
+					ioLock.unlock();
+				}
+			}
+		} catch (InterruptedException e) {
+			if (!closed) {
+				log.warn("Read-ahead thread interrupted");
+			}
+		} finally {
+			ioThread = null;
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		int count = 0;
+		while (dst.hasRemaining()) {
+			if (current == null || !current.hasRemaining()) {
+				if (current != null && current.limit() < current.capacity()) {
+					// The I/O thread only returns a partial buffer at end of stream
+					endOfStream = true;
+					IOException e = error;
+					if (e != null && count == 0) {
+						throw e;
+					}
+				}
+				if (endOfStream || (count > 0 && filled.isEmpty())) {
+					// Do not wait for the I/O thread if some data is already available
+					break;
+				}
+				nextBuffer();
+				continue;
+			}
+			int length = Math.min(dst.remaining(), current.remaining());
+			int limit = current.limit();
+			current.limit(current.position() + length);
+			dst.put(current);
+			current.limit(limit);
+			count += length;
+		}
+		position += count;
+		return count == 0 && endOfStream ? -1 : count;
+	}
+
+	private void nextBuffer() throws IOException {
+		if (current != null) {
+			free.add(current);
+			current = null;
+		}
+		ByteBuffer buffer = filled.poll();
+		if (buffer == null) {
+			long start = System.nanoTime();
+			try {
+				buffer = filled.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for read-ahead data");
+			}
+			stallCount++;
+			stallNanos += System.nanoTime() - start;
+		}
+		current = buffer;
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	/**
+	 * Discards the data read in advance and restarts reading at newPosition.
+	 *
+	 * @throws UnsupportedOperationException if the underlying channel is not seekable
+	 */
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		if (!(channel instanceof SeekableByteChannel)) {
+			throw new UnsupportedOperationException("Underlying channel is not seekable");
+		}
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		ioLock.lock();
+		try {
+			((SeekableByteChannel) channel).position(newPosition);
+			if (current != null) {
+				free.add(current);
+				current = null;
+			}
+			filled.drainTo(free);
+			error = null;
+			endOfStream = false;
+			position = newPosition;
+			generation++;
+			repositioned.signalAll();
+		} finally {
+			ioLock.unlock();
+		}
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		if (!(channel instanceof SeekableByteChannel)) {
+			throw new UnsupportedOperationException("Underlying channel is not seekable");
+		}
+		return ((SeekableByteChannel) channel).size();
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		Thread thread = ioThread;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		channel.close();
+	}
+
+	/**
+	 * @return the number of reads that had to wait for the I/O thread
+	 */
+	public long getStallCount() {
+		return stallCount;
+	}
+
+	/**
+	 * @return the total time spent waiting for the I/O thread, in nanoseconds
+	 */
+	public long getStallNanos() {
+		return stallNanos;
+	}
+
+	/**
+	 * @return the number of bytes read from the underlying channel, including discarded read-ahead data
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public static ReadAheadChannelBuilder builder() {
+		return new ReadAheadChannelBuilder();
+	}
+
+	public static class ReadAheadChannelBuilder {
+		private ReadableByteChannel channel;
+		private int readSize = 1024 * 1024;
+		private int depth = 2;
+		private boolean direct = false;
+		private Executor executor;
+
+		private ReadAheadChannelBuilder() {
+		}
+
+		public ReadAheadChannelBuilder setChannel(ReadableByteChannel channel) {
+			this.channel = channel;
+			return this;
+		}
+
+		/**
+		 * Size of each read issued to the underlying channel. Defaults to 1MB.
+		 */
+		public ReadAheadChannelBuilder setReadSize(int readSize) {
+			this.readSize = readSize;
+			return this;
+		}
+
+		/**
+		 * Number of buffers read in advance. Defaults to 2.
+		 */
+		public ReadAheadChannelBuilder setDepth(int depth) {
+			this.depth = depth;
+			return this;
+		}
+
+		public ReadAheadChannelBuilder setDirect(boolean direct) {
+			this.direct = direct;
+			return this;
+		}
+
+		/**
+		 * Executor running the I/O loop, which occupies one of its threads until the channel is closed.
+		 * By default, a dedicated daemon thread is started.
+		 */
+		public ReadAheadChannelBuilder setExecutor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		public ReadAheadChannel build() throws IOException {
+			Preconditions.checkNotNull(channel, "channel cannot be null");
+			Preconditions.checkArgument(readSize > 0, "readSize must be positive");
+			Preconditions.checkArgument(depth > 0, "depth must be positive");
+			return new ReadAheadChannel(channel, readSize, depth, direct, executor);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.taktik.ioutils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded lock-free queue for a single producer thread.
+ * <br>
+ * Only one thread at a time may {@link #offer(Object)}, but any thread may {@link #poll()}: the producer can drop the
+ * oldest element itself when the queue is full, while the consumer keeps polling. Polls compete for the head with a
+ * compare-and-set, the head and tail sequences only ever grow, so a slot is never read twice.
+ * <br>
+ * The capacity is rounded up to a power of two, and slots are preallocated. The head and tail sequences are padded to
+ * sit on cache lines of their own, and the producer caches the head, so that the producer and the consumer do not keep
+ * invalidating each other's cache lines. Polled slots are not cleared, elements stay referenced until overwritten.
+ */
+public class RingBuffer<E> {
+	private final Object[] elements;
+	private final int mask;
+	// Sequence of the next element to poll
+	private final Sequence head = new Sequence();
+	// Sequence of the next element to offer, published once the slot is written
+	private final Sequence tail = new Sequence();
+	// Last head seen by the producer, the queue has at least this much room
+	private long headCache;
+
+	public RingBuffer(int capacity) {
+		Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "Invalid capacity");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.elements = new Object[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Adds an element, from the producer thread only.
+	 *
+	 * @return false if the queue is full
+	 */
+	public boolean offer(E element) {
+		Preconditions.checkNotNull(element);
+		long t = tail.get();
+		if (t - headCache >= elements.length) {
+			headCache = head.get();
+			if (t - headCache >= elements.length) {
+				return false;
+			}
+		}
+		elements[(int) t & mask] = element;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest element, from any thread.
+	 *
+	 * @return null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		while (true) {
+			long h = head.get();
+			if (h >= tail.get()) {
+				return null;
+			}
+			// Read before claiming the slot: once the head moves, the producer may overwrite it
+			E element = (E) elements[(int) h & mask];
+			if (head.compareAndSet(h, h + 1)) {
+				return element;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of elements in the queue, which may already have changed
+	 */
+	public int size() {
+		// Read the head first, so that the size is never negative
+		long h = head.get();
+		return (int) Math.min(tail.get() - h, elements.length);
+	}
+
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+
+	public int capacity() {
+		return elements.length;
+	}
+
+	/**
+	 * An AtomicLong padded to a 64 bytes cache line, so that no other frequently written field shares it.
+	 */
+	@SuppressWarnings({"unused", "serial"})
+	private static class Sequence extends AtomicLong {
+		private long p1, p2, p3, p4, p5, p6, p7;
+	}
+}
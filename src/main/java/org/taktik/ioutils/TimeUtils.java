@@ -0,0 +1,34 @@
+package org.taktik.ioutils;
+
+import java.util.concurrent.locks.LockSupport;
+
+public class TimeUtils {
+	/**
+	 * Below this, {@link LockSupport#parkNanos(long)} is not precise enough: the scheduler typically wakes threads up
+	 * 50 to 100 microseconds late.
+	 */
+	public static final long DEFAULT_SPIN_NANOS = 100_000;
+
+	/**
+	 * Waits until {@link System#nanoTime()} reaches deadline, parking the thread while the deadline is more than
+	 * spinNanos away, then spinning.
+	 *
+	 * @return how late the thread woke up, in nanoseconds
+	 */
+	public static long waitUntil(long deadline, long spinNanos) throws InterruptedException {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (remaining > spinNanos) {
+				LockSupport.parkNanos(remaining - spinNanos);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+		return -remaining;
+	}
+
+	public static long waitUntil(long deadline) throws InterruptedException {
+		return waitUntil(deadline, DEFAULT_SPIN_NANOS);
+	}
+}
@@ -0,0 +1,175 @@
+package org.taktik.ioutils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hierarchical timing wheel: schedules elements at a deadline ({@link System#nanoTime()} based) in constant time, and
+ * expires them in deadline order, to the nearest tick.
+ * <br>
+ * Level 0 has 64 slots of one tick, and each next level 64 slots as wide as the whole previous level. An element too far
+ * away for a level waits in the next one, and moves down when its slot comes up. Elements expire at the first tick at or
+ * after their deadline, never early. The deadline of an element must not change while it is scheduled.
+ * Not thread safe.
+ */
+public class TimerWheel<E> {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	private final long tickNanos;
+	private final int levels;
+	private final ToLongFunction<E> deadline;
+	private final List<E>[][] slots;
+	// Elements due at or before the current tick, expired by the next call to expire()
+	private final List<E> overdue = new ArrayList<>();
+	private final long origin;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param tickNanos resolution of the wheel
+	 * @param levels number of levels: the wheel covers 64^levels ticks, farther deadlines are checked again every
+	 *               64^(levels - 1) ticks
+	 * @param deadline gives the deadline of an element
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tickNanos, int levels, ToLongFunction<E> deadline) {
+		Preconditions.checkArgument(tickNanos > 0, "tickNanos must be positive");
+		Preconditions.checkArgument(levels > 1 && levels * SLOT_BITS < 63, "levels must be between 2 and 10");
+		this.tickNanos = tickNanos;
+		this.levels = levels;
+		this.deadline = Preconditions.checkNotNull(deadline);
+		this.slots = new List[levels][SLOTS];
+		for (int level = 0; level < levels; level++) {
+			for (int slot = 0; slot < SLOTS; slot++) {
+				slots[level][slot] = new ArrayList<>();
+			}
+		}
+		this.origin = System.nanoTime();
+	}
+
+	public void schedule(E element) {
+		place(element, tickOf(deadline.applyAsLong(element)));
+		size++;
+	}
+
+	/**
+	 * Moves the elements due at time now to expired, in deadline order (to the nearest tick).
+	 *
+	 * @return the number of elements expired
+	 */
+	public int expire(long now, List<? super E> expired) {
+		int count = drainOverdue(expired);
+		long target = Math.floorDiv(now - origin, tickNanos);
+		if (size == 0) {
+			currentTick = Math.max(currentTick, target);
+			return count;
+		}
+		while (currentTick < target && size > 0) {
+			currentTick++;
+			// Elements of the slots coming up move down, from the highest level so that they can go down several levels
+			for (int level = levels - 1; level > 0; level--) {
+				if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+					cascade(level, (int) (currentTick >> (SLOT_BITS * level)) & SLOT_MASK);
+				}
+			}
+			List<E> slot = slots[0][(int) currentTick & SLOT_MASK];
+			if (!slot.isEmpty()) {
+				count += slot.size();
+				size -= slot.size();
+				expired.addAll(slot);
+				slot.clear();
+			}
+			count += drainOverdue(expired);
+		}
+		currentTick = Math.max(currentTick, target);
+		return count;
+	}
+
+	/**
+	 * @return when {@link #expire(long, List)} should be called next: the time of the next tick with elements, or of the
+	 * next tick moving elements down a level, whichever comes first. Long.MAX_VALUE if the wheel is empty.
+	 */
+	public long nextExpiry() {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+		if (!overdue.isEmpty()) {
+			return timeOf(currentTick);
+		}
+		long nextCascade = ((currentTick >> SLOT_BITS) + 1) << SLOT_BITS;
+		for (long tick = currentTick + 1; tick < nextCascade; tick++) {
+			if (!slots[0][(int) tick & SLOT_MASK].isEmpty()) {
+				return timeOf(tick);
+			}
+		}
+		return timeOf(nextCascade);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	private void place(E element, long tick) {
+		long delta = tick - currentTick;
+		if (delta <= 0) {
+			overdue.add(element);
+			return;
+		}
+		int level = 0;
+		while (level < levels - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+			level++;
+		}
+		if (delta >= 1L << (SLOT_BITS * (level + 1))) {
+			// Beyond the wheel: waits in the farthest slot, and is placed again from there
+			tick = currentTick + (1L << (SLOT_BITS * (level + 1))) - 1;
+		}
+		slots[level][(int) (tick >> (SLOT_BITS * level)) & SLOT_MASK].add(element);
+	}
+
+	private void cascade(int level, int index) {
+		List<E> slot = slots[level][index];
+		if (slot.isEmpty()) {
+			return;
+		}
+		// Elements placed again never go back to this slot
+		Object[] elements = slot.toArray();
+		slot.clear();
+		for (Object element : elements) {
+			@SuppressWarnings("unchecked")
+			E e = (E) element;
+			place(e, tickOf(deadline.applyAsLong(e)));
+		}
+	}
+
+	private int drainOverdue(List<? super E> expired) {
+		int count = overdue.size();
+		if (count > 0) {
+			size -= count;
+			expired.addAll(overdue);
+			overdue.clear();
+		}
+		return count;
+	}
+
+	private long tickOf(long deadline) {
+		// Rounded up, so that nothing expires early
+		return Math.floorDiv(deadline - origin + tickNanos - 1, tickNanos);
+	}
+
+	private long timeOf(long tick) {
+		return origin + tick * tickNanos;
+	}
+}
@@ -0,0 +1,140 @@
+package org.taktik.ioutils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link WaitStrategy} implementations, from the lowest latency (and highest CPU usage) to the highest latency.
+ */
+public class WaitStrategies {
+
+	/**
+	 * Spins on the condition: lowest latency, burns a whole core while waiting.
+	 */
+	public static WaitStrategy busySpin() {
+		return new BusySpinWaitStrategy();
+	}
+
+	/**
+	 * Spins for a while, then yields the CPU to other threads between checks.
+	 */
+	public static WaitStrategy yielding() {
+		return new YieldingWaitStrategy();
+	}
+
+	/**
+	 * Parks the thread for parkNanos between checks: little CPU, up to parkNanos (plus the scheduler latency) late.
+	 */
+	public static WaitStrategy parking(long parkNanos) {
+		Preconditions.checkArgument(parkNanos > 0, "parkNanos must be positive");
+		return new ParkingWaitStrategy(parkNanos);
+	}
+
+	/**
+	 * Blocks on a lock condition until signalled: no CPU while waiting, each signal to a waiting thread costs a lock.
+	 */
+	public static WaitStrategy blocking() {
+		return new BlockingWaitStrategy();
+	}
+
+	private static class BusySpinWaitStrategy implements WaitStrategy {
+		@Override
+		public void waitFor(BooleanSupplier condition) throws InterruptedException {
+			while (!condition.getAsBoolean()) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+
+		@Override
+		public void signal() {
+		}
+	}
+
+	private static class YieldingWaitStrategy implements WaitStrategy {
+		private static final int SPIN_TRIES = 100;
+
+		@Override
+		public void waitFor(BooleanSupplier condition) throws InterruptedException {
+			int tries = 0;
+			while (!condition.getAsBoolean()) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if (++tries > SPIN_TRIES) {
+					Thread.yield();
+				}
+			}
+		}
+
+		@Override
+		public void signal() {
+		}
+	}
+
+	private static class ParkingWaitStrategy implements WaitStrategy {
+		private final long parkNanos;
+
+		private ParkingWaitStrategy(long parkNanos) {
+			this.parkNanos = parkNanos;
+		}
+
+		@Override
+		public void waitFor(BooleanSupplier condition) throws InterruptedException {
+			while (!condition.getAsBoolean()) {
+				LockSupport.parkNanos(parkNanos);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+
+		@Override
+		public void signal() {
+		}
+	}
+
+	private static class BlockingWaitStrategy implements WaitStrategy {
+		// A signal may race with a thread starting to wait, waits are bounded so that it is never lost for long
+		private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition progress = lock.newCondition();
+		private volatile int waiters;
+
+		@Override
+		public void waitFor(BooleanSupplier condition) throws InterruptedException {
+			if (condition.getAsBoolean()) {
+				return;
+			}
+			lock.lockInterruptibly();
+			try {
+				waiters++;
+				while (!condition.getAsBoolean()) {
+					progress.awaitNanos(MAX_WAIT_NANOS);
+				}
+			} finally {
+				waiters--;
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void signal() {
+			if (waiters > 0) {
+				lock.lock();
+				try {
+					progress.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.taktik.ioutils;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread waits for another one to make progress, typically for room or elements in a {@link RingBuffer}.
+ * See {@link WaitStrategies} for implementations.
+ */
+public interface WaitStrategy {
+	/**
+	 * Returns once condition is true. May also return before, callers check their condition again.
+	 */
+	public void waitFor(BooleanSupplier condition) throws InterruptedException;
+
+	/**
+	 * Called after making progress, so that threads waiting for it check their condition again.
+	 */
+	public void signal();
+}
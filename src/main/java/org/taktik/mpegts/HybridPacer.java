@@ -0,0 +1,24 @@
+package org.taktik.mpegts;
+
+import org.taktik.ioutils.TimeUtils;
+
+/**
+ * Parks the thread until spinNanos before the deadline, then spins: waits end within a few microseconds of their deadline,
+ * at the cost of a busy CPU during the last spinNanos of each wait.
+ */
+public class HybridPacer implements Pacer {
+	private final long spinNanos;
+
+	public HybridPacer() {
+		this(TimeUtils.DEFAULT_SPIN_NANOS);
+	}
+
+	public HybridPacer(long spinNanos) {
+		this.spinNanos = spinNanos;
+	}
+
+	@Override
+	public long waitUntil(long deadline) throws InterruptedException {
+		return TimeUtils.waitUntil(deadline, spinNanos);
+	}
+}
@@ -1,11 +1,14 @@
 package org.taktik.mpegts;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import com.google.common.base.Preconditions;
 import org.taktik.ioutils.NIOUtils;
 
 public class MTSPacket extends PacketSupport {
+	private static final AtomicIntegerFieldUpdater<MTSPacket> REF_COUNT = AtomicIntegerFieldUpdater.newUpdater(MTSPacket.class, "refCount");
+
 	private boolean transportErrorIndicator;	// Transport Error Indicator (TEI)
 	private boolean payloadUnitStartIndicator;	// Payload Unit Start Indicator
 	private boolean transportPriority;			// Transport Priority
@@ -18,6 +21,9 @@ public class MTSPacket extends PacketSupport {
 	private AdaptationField adaptationField;
 	private ByteBuffer payload;
 
+	private final PacketPool pool;
+	private volatile int refCount = 1;
+
 	public static class AdaptationField {
 		private MTSPacket packet;
 		private boolean discontinuityIndicator;		// Discontinuity indicator
@@ -53,8 +59,8 @@ public class MTSPacket extends PacketSupport {
 
 			public void setValue(long value) {
 				base = value / 300;
-				extension = (int)value % 300;
-				field.markDirty();
+				extension = (int) (value % 300);
+				field.updatePcr(this);
 			}
 
 			public void write(ByteBuffer buffer) {
@@ -97,20 +103,50 @@ public class MTSPacket extends PacketSupport {
 
 		public void setDiscontinuityIndicator(boolean discontinuityIndicator) {
 			this.discontinuityIndicator = discontinuityIndicator;
-			markDirty();
+			updateFlag(0x80, discontinuityIndicator);
 		}
 
 		private void markDirty() {
 			packet.markDirty();
 		}
 
+		/**
+		 * Patches a flag of the first adaptation field byte in place, unless the packet has to be re-encoded anyway.
+		 */
+		private void updateFlag(int mask, boolean value) {
+			if (!packet.dirty) {
+				packet.ensureWritable();
+				int flags = packet.buffer.get(5) & 0xff;
+				packet.buffer.put(5, (byte) (value ? flags | mask : flags & ~mask));
+			}
+		}
+
+		/**
+		 * Patches the PCR or OPCR in place if it is present in the packet, otherwise falls back to a full re-encoding.
+		 */
+		private void updatePcr(PCR updated) {
+			if (packet.dirty) {
+				return;
+			}
+			int offset = 6;
+			if (updated == opcr && opcrFlag) {
+				if (pcrFlag && pcr != null) {
+					offset += 6;
+				}
+			} else if (updated != pcr || !pcrFlag) {
+				markDirty();
+				return;
+			}
+			packet.writePcr(offset, updated.base, updated.extension, updated.reserved);
+		}
+
 		public boolean isRandomAccessIndicator() {
 			return randomAccessIndicator;
 		}
 
 		public void setRandomAccessIndicator(boolean randomAccessIndicator) {
 			this.randomAccessIndicator = randomAccessIndicator;
-			markDirty();
+			updateFlag(0x40, randomAccessIndicator);
 		}
 
 		public boolean isElementaryStreamPriorityIndicator() {
@@ -119,7 +155,7 @@ public class MTSPacket extends PacketSupport {
 
 		public void setElementaryStreamPriorityIndicator(boolean elementaryStreamPriorityIndicator) {
 			this.elementaryStreamPriorityIndicator = elementaryStreamPriorityIndicator;
-			markDirty();
+			updateFlag(0x20, elementaryStreamPriorityIndicator);
 		}
 
 		public boolean isPcrFlag() {
@@ -297,6 +333,7 @@ public class MTSPacket extends PacketSupport {
 
 	public MTSPacket(boolean transportErrorIndicator, boolean payloadUnitStartIndicator, boolean transportPriority, int pid, int scramblingControl, int continuityCounter) {
 		super();
+		this.pool = null;
 		this.buffer = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
 		this.transportErrorIndicator = transportErrorIndicator;
 		this.payloadUnitStartIndicator = payloadUnitStartIndicator;
@@ -306,14 +343,119 @@ public class MTSPacket extends PacketSupport {
 		this.continuityCounter = continuityCounter;
 		this.adaptationFieldExist = false;
 		this.containsPayload = false;
+		// The buffer does not reflect the fields yet
+		markDirty();
 	}
 
+	/**
+	 * Wraps a 188 bytes packet. Header fields are read from the buffer on demand,
+	 * the adaptation field and the payload are only decoded when accessed.
+	 */
 	public MTSPacket(ByteBuffer buffer) {
 		super(buffer);
+		this.pool = null;
+		validate();
+	}
+
+	/**
+	 * Creates an empty packet owned by a {@link PacketPool}. The packet is unusable until {@link #reload()} is called.
+	 */
+	MTSPacket(PacketPool pool, ByteBuffer buffer) {
+		super();
+		this.pool = pool;
+		this.buffer = buffer;
+		this.refCount = 0;
+	}
+
+	/**
+	 * Resets a pooled packet after new content has been copied into its buffer.
+	 */
+	void reload() {
+		buffer.rewind();
+		parsed = false;
+		dirty = false;
+		adaptationField = null;
+		payload = null;
+		validate();
+		refCount = 1;
+	}
+
+	private void validate() {
+		Preconditions.checkArgument(Constants.TS_MARKER == buffer.get(0));
+		if ((buffer.get(3) & 0x20) != 0) {
+			Preconditions.checkArgument((buffer.get(4) & 0xff) <= 183, "Invalid adaptation field length");
+		}
+	}
+
+	/**
+	 * Increments the reference count of this packet.
+	 * Code keeping a packet after handing it over (queues, fan-out, asynchronous sinks) must retain it
+	 * and call {@link #release()} once done.
+	 *
+	 * @return this packet
+	 */
+	public MTSPacket retain() {
+		int count = REF_COUNT.incrementAndGet(this);
+		Preconditions.checkState(count > 1, "Packet has already been released");
+		return this;
+	}
+
+	/**
+	 * Decrements the reference count of this packet. When it reaches zero, a pooled packet goes back to its pool
+	 * and must not be accessed anymore. Releasing a packet that does not come from a pool only updates the count.
+	 *
+	 * @return true if the packet has been recycled
+	 */
+	public boolean release() {
+		int count = REF_COUNT.decrementAndGet(this);
+		if (count == 0) {
+			if (pool != null) {
+				pool.recycle(this);
+				return true;
+			}
+		} else if (count < 0) {
+			REF_COUNT.incrementAndGet(this);
+			throw new IllegalStateException("Packet has already been released");
+		}
+		return false;
+	}
+
+	public int refCount() {
+		return refCount;
+	}
+
+	/**
+	 * Copies the 188 bytes of the packet into target, starting at offset, without moving the position of the packet buffer.
+	 * Works with heap, direct and read-only buffers.
+	 */
+	public void copyTo(byte[] target, int offset) {
+		ByteBuffer source = getBuffer();
+		if (source.hasArray()) {
+			System.arraycopy(source.array(), source.arrayOffset(), target, offset, Constants.MPEGTS_PACKET_SIZE);
+		} else {
+			ByteBuffer duplicate = source.duplicate();
+			duplicate.position(0);
+			duplicate.get(target, offset, Constants.MPEGTS_PACKET_SIZE);
+		}
+	}
+
+	/**
+	 * Copies the 188 bytes of the packet at the position of target, advancing it, without moving the position of the packet buffer.
+	 */
+	public void copyTo(ByteBuffer target) {
+		ByteBuffer source = getBuffer();
+		if (source.hasArray()) {
+			target.put(source.array(), source.arrayOffset(), Constants.MPEGTS_PACKET_SIZE);
+		} else {
+			ByteBuffer duplicate = source.duplicate();
+			duplicate.position(0).limit(Constants.MPEGTS_PACKET_SIZE);
+			target.put(duplicate);
+		}
 	}
 
 	@Override
 	protected void write() {
+		ensureWritable();
 		// First write payload
 		int payloadLength = 0;
 		if (containsPayload && payload != null) {
@@ -503,105 +645,263 @@ public class MTSPacket extends PacketSupport {
 	}
 
 	private AdaptationField.PCR parsePCR() {
-		AdaptationField.PCR pcr;
-		byte[] pcrBytes = new byte[6];
-		buffer.get(pcrBytes);
+		int offset = buffer.position();
+		buffer.position(offset + 6);
+		byte reserved = (byte) ((buffer.get(offset + 4) & 0x7E) >> 1);
+		return new AdaptationField.PCR(null, readPcrBase(offset), readPcrExtension(offset), reserved);
+	}
+
+	private long readPcrBase(int offset) {
+		return ((buffer.getInt(offset) & 0xffffffffL) << 1) | ((buffer.get(offset + 4) & 0x80) >> 7);
+	}
+
+	private int readPcrExtension(int offset) {
+		return ((buffer.get(offset + 4) & 0x01) << 8) | (buffer.get(offset + 5) & 0xff);
+	}
+
+	/**
+	 * @return true if the packet carries a PCR. Unlike {@link #getAdaptationField()}, this does not parse the packet.
+	 */
+	public boolean hasPcr() {
+		if (dirty) {
+			return adaptationFieldExist && adaptationField != null && adaptationField.pcrFlag && adaptationField.pcr != null;
+		}
+		return (buffer.get(3) & 0x20) != 0 && (buffer.get(4) & 0xff) >= 7 && (buffer.get(5) & 0x10) != 0;
+	}
+
+	/**
+	 * @return the PCR value in 27MHz units, or -1 if the packet has no PCR. This does not allocate anything.
+	 */
+	public long getPcrValue() {
+		if (!hasPcr()) {
+			return -1;
+		}
+		if (dirty) {
+			return adaptationField.pcr.getValue();
+		}
+		return readPcrBase(6) * 300 + readPcrExtension(6);
+	}
+
+	/**
+	 * Rewrites the PCR value (in 27MHz units) in place.
+	 *
+	 * @throws IllegalStateException if the packet has no PCR
+	 */
+	public void setPcrValue(long value) {
+		Preconditions.checkState(hasPcr(), "Packet has no PCR");
+		if (adaptationField != null) {
+			adaptationField.pcr.setValue(value);
+		} else {
+			byte reserved = (byte) ((buffer.get(10) & 0x7E) >> 1);
+			writePcr(6, value / 300, (int) (value % 300), reserved);
+		}
+	}
+
+	/**
+	 * @return the discontinuity indicator of the adaptation field, false if there is none. This does not parse the packet.
+	 */
+	public boolean isDiscontinuityIndicator() {
+		if (dirty) {
+			return adaptationFieldExist && adaptationField != null && adaptationField.discontinuityIndicator;
+		}
+		return (buffer.get(3) & 0x20) != 0 && (buffer.get(4) & 0xff) > 0 && (buffer.get(5) & 0x80) != 0;
+	}
 
-		long pcrBits = ((pcrBytes[0] & 0xffL) << 40) | ((pcrBytes[1] & 0xffL) << 32) | ((pcrBytes[2] & 0xffL) << 24) | ((pcrBytes[3] & 0xffL) << 16) | ((pcrBytes[4] & 0xffL) << 8) | (pcrBytes[5] & 0xffL);
-		long base = (pcrBits & 0xFFFFFFFF8000L) >> 15;
-		byte reserved =  (byte) ((pcrBits & 0x7E00) >> 9);
-		int extension = (int) (pcrBits & 0x1FFL);
-		pcr = new AdaptationField.PCR(null, base, extension, reserved);
-		return pcr;
+	/**
+	 * @return the random access indicator of the adaptation field, false if there is none. This does not parse the packet.
+	 */
+	public boolean isRandomAccessIndicator() {
+		if (dirty) {
+			return adaptationFieldExist && adaptationField != null && adaptationField.randomAccessIndicator;
+		}
+		return (buffer.get(3) & 0x20) != 0 && (buffer.get(4) & 0xff) > 0 && (buffer.get(5) & 0x40) != 0;
 	}
 
 	public boolean isTransportErrorIndicator() {
+		if (!parsed) {
+			return (buffer.get(1) & 0x80) != 0;
+		}
 		return transportErrorIndicator;
 	}
 
 	public void setTransportErrorIndicator(boolean transportErrorIndicator) {
 		this.transportErrorIndicator = transportErrorIndicator;
-		markDirty();
+		if (!dirty) {
+			ensureWritable();
+			updateHeaderFlag(1, 0x80, transportErrorIndicator);
+		}
 	}
 
 	public boolean isPayloadUnitStartIndicator() {
+		if (!parsed) {
+			return (buffer.get(1) & 0x40) != 0;
+		}
 		return payloadUnitStartIndicator;
 	}
 
 	public void setPayloadUnitStartIndicator(boolean payloadUnitStartIndicator) {
 		this.payloadUnitStartIndicator = payloadUnitStartIndicator;
-		markDirty();
+		if (!dirty) {
+			ensureWritable();
+			updateHeaderFlag(1, 0x40, payloadUnitStartIndicator);
+		}
 	}
 
 	public boolean isTransportPriority() {
+		if (!parsed) {
+			return (buffer.get(1) & 0x20) != 0;
+		}
 		return transportPriority;
 	}
 
 	public void setTransportPriority(boolean transportPriority) {
 		this.transportPriority = transportPriority;
-		markDirty();
+		if (!dirty) {
+			ensureWritable();
+			updateHeaderFlag(1, 0x20, transportPriority);
+		}
 	}
 
 	public int getPid() {
+		if (!parsed) {
+			return buffer.getShort(1) & 0x1fff;
+		}
 		return pid;
 	}
 
 	public void setPid(int pid) {
 		this.pid = pid;
-		markDirty();
+		if (!dirty) {
+			ensureWritable();
+			buffer.putShort(1, (short) ((buffer.getShort(1) & 0xe000) | (pid & 0x1fff)));
+		}
 	}
 
 	public int getScramblingControl() {
+		if (!parsed) {
+			return buffer.get(3) & 0xc0;
+		}
 		return scramblingControl;
 	}
 
 	public void setScramblingControl(int scramblingControl) {
 		this.scramblingControl = scramblingControl;
-		markDirty();
+		if (!dirty) {
+			ensureWritable();
+			buffer.put(3, (byte) ((buffer.get(3) & 0x3f) | (scramblingControl & 0xc0)));
+		}
 	}
 
 	public boolean isAdaptationFieldExist() {
+		if (!parsed) {
+			return (buffer.get(3) & 0x20) != 0;
+		}
 		return adaptationFieldExist;
 	}
 
 	public void setAdaptationFieldExist(boolean adaptationFieldExist) {
+		ensureParsed();
 		this.adaptationFieldExist = adaptationFieldExist;
 		markDirty();
 	}
 
 	public boolean isContainsPayload() {
+		if (!parsed) {
+			return (buffer.get(3) & 0x10) != 0;
+		}
 		return containsPayload;
 	}
 
 	public void setContainsPayload(boolean containsPayload) {
+		ensureParsed();
 		this.containsPayload = containsPayload;
 		markDirty();
 	}
 
 	public int getContinuityCounter() {
+		if (!parsed) {
+			return buffer.get(3) & 0x0f;
+		}
 		return continuityCounter;
 	}
 
 	public void setContinuityCounter(int continuityCounter) {
 		this.continuityCounter = continuityCounter;
-		markDirty();
+		if (!dirty) {
+			ensureWritable();
+			buffer.put(3, (byte) ((buffer.get(3) & 0xf0) | (continuityCounter & 0x0f)));
+		}
 	}
 
 	public AdaptationField getAdaptationField() {
+		ensureParsed();
 		return adaptationField;
 	}
 
 	public void setAdaptationField(AdaptationField adaptationField) {
+		ensureParsed();
 		this.adaptationField = adaptationField;
 		markDirty();
 	}
 
 	public ByteBuffer getPayload() {
+		if (!parsed && payload == null && isContainsPayload()) {
+			// Slice the payload without decoding the adaptation field
+			ByteBuffer data = buffer.duplicate();
+			data.position(getPayloadOffset());
+			payload = data.slice();
+		}
 		return payload;
 	}
 
 	public void setPayload(ByteBuffer payload) {
+		ensureParsed();
 		this.payload = payload;
 		markDirty();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Makes sure the packet can be modified in place. A read-only buffer, such as a slice of a memory-mapped file,
+	 * is first copied to the heap.
+	 */
+	public void ensureWritable() {
+		if (!buffer.isReadOnly()) {
+			return;
+		}
+		ByteBuffer source = buffer.duplicate();
+		source.rewind();
+		ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+		copy.put(source);
+		copy.rewind();
+		buffer = copy;
+		if (payload != null && !dirty) {
+			// The payload is still a slice of the previous buffer
+			payload = null;
+			if (parsed) {
+				ByteBuffer data = buffer.duplicate();
+				data.position(getPayloadOffset());
+				payload = data.slice();
+			}
+		}
+	}
+
+	private void updateHeaderFlag(int index, int mask, boolean value) {
+		int b = buffer.get(index) & 0xff;
+		buffer.put(index, (byte) (value ? b | mask : b & ~mask));
+	}
+
+	private void writePcr(int offset, long base, int extension, byte reserved) {
+		ensureWritable();
+		buffer.putInt(offset, (int) ((base & 0x1FFFFFFFFL) >> 1));
+		buffer.put(offset + 4, (byte) (((base & 0x1) << 7) | ((reserved & 0x3F) << 1) | ((extension & 0x1FF) >> 8)));
+		buffer.put(offset + 5, (byte) (extension & 0xff));
+	}
+
+	private int getPayloadOffset() {
+		int offset = 4;
+		if ((buffer.get(3) & 0x20) != 0) {
+			offset += 1 + (buffer.get(4) & 0xff);
+		}
+		return offset;
+	}
+}
@@ -24,13 +24,17 @@ public class PMTSection extends PSISection {
 
 	private int pcrPid;
 //	private Tag[] tags;
-//	private PMTStream[] streams;
+	private PMTStream[] streams;
 
-	public PMTSection(PSISection psi, int pcrPid) {//, Tag[] tags, PMTStream[] streams) {
+	public PMTSection(PSISection psi, int pcrPid) {
+		this(psi, pcrPid, new PMTStream[0]);
+	}
+
+	public PMTSection(PSISection psi, int pcrPid, PMTStream[] streams) {//, Tag[] tags) {
 		super(psi);
 		this.pcrPid = pcrPid;
 //		this.tags = tags;
-//		this.streams = streams;
+		this.streams = streams;
 	}
 
 	public int getPcrPid() {
@@ -41,9 +45,9 @@ public class PMTSection extends PSISection {
 //		return tags;
 //	}
 //
-//	public PMTStream[] getStreams() {
-//		return streams;
-//	}
+	public PMTStream[] getStreams() {
+		return streams;
+	}
 
 	public static PMTSection parse(ByteBuffer data) {
 		PSISection psi = PSISection.parse(data);
@@ -55,20 +59,22 @@ public class PMTSection extends PSISection {
 		int programInfoLength = w2 & 0xfff;
 
 //		List<Tag> tags = parseTags(NIOUtils.read(data, programInfoLength));
-//		List<PMTStream> streams = new ArrayList<PMTStream>();
-//		while (data.remaining() > 4) {
-//			int streamType = data.get() & 0xff;
-//			int wn = data.getShort() & 0xffff;
-//			int elementaryPid = wn & 0x1fff;
-//
-//
-//			int wn1 = data.getShort() & 0xffff;
-//			int esInfoLength = wn1 & 0xfff;
-//			ByteBuffer read = NIOUtils.read(data, esInfoLength);
-//			streams.add(new PMTStream(streamType, elementaryPid, MPSUtils.parseDescriptors(read)));
-//		}
+		data.position(data.position() + programInfoLength);
+		List<PMTStream> streams = new ArrayList<PMTStream>();
+		// Followed by the CRC
+		while (data.remaining() > 4) {
+			int streamType = data.get() & 0xff;
+			int wn = data.getShort() & 0xffff;
+			int elementaryPid = wn & 0x1fff;
+
+
+			int wn1 = data.getShort() & 0xffff;
+			int esInfoLength = wn1 & 0xfff;
+			data.position(data.position() + esInfoLength);
+			streams.add(new PMTStream(streamType, elementaryPid));
+		}
 
-		return new PMTSection(psi, pcrPid);
+		return new PMTSection(psi, pcrPid, streams.toArray(new PMTStream[streams.size()]));
 	}
 
 	static List<Tag> parseTags(ByteBuffer bb) {
@@ -99,33 +105,42 @@ public class PMTSection extends PSISection {
 		}
 	}
 
-//	public static class PMTStream {
-//		private int streamTypeTag;
-//		private int pid;
-//		private List<MPEGMediaDescriptor> descriptors;
-//		private StreamType streamType;
-//
-//		public PMTStream(int streamTypeTag, int pid, List<MPEGMediaDescriptor> descriptors) {
-//			this.streamTypeTag = streamTypeTag;
-//			this.pid = pid;
-//			this.descriptors = descriptors;
-//			this.streamType = StreamType.fromTag(streamTypeTag);
-//		}
-//
-//		public int getStreamTypeTag() {
-//			return streamTypeTag;
-//		}
-//
-//		public StreamType getStreamType() {
-//			return streamType;
-//		}
-//
-//		public int getPid() {
-//			return pid;
-//		}
-//
-//		public List<MPEGMediaDescriptor> getDesctiptors() {
-//			return descriptors;
-//		}
-//	}
+	/**
+	 * An elementary stream of the program. Descriptors are not parsed.
+	 */
+	public static class PMTStream {
+		private int streamTypeTag;
+		private int pid;
+
+		public PMTStream(int streamTypeTag, int pid) {
+			this.streamTypeTag = streamTypeTag;
+			this.pid = pid;
+		}
+
+		public int getStreamTypeTag() {
+			return streamTypeTag;
+		}
+
+		public int getPid() {
+			return pid;
+		}
+
+		/**
+		 * @return true for MPEG-1/2, MPEG-4, H.264, HEVC, AVS and VC-1 video
+		 */
+		public boolean isVideo() {
+			switch (streamTypeTag) {
+				case 0x01:
+				case 0x02:
+				case 0x10:
+				case 0x1b:
+				case 0x24:
+				case 0x42:
+				case 0xea:
+					return true;
+				default:
+					return false;
+			}
+		}
+	}
 }
\ No newline at end of file
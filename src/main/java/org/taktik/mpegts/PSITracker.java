@@ -0,0 +1,209 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows the PAT and PMTs of a stream, and keeps the role of each PID in an array, so that classifying a packet costs a
+ * single array load.
+ * <br>
+ * Tables are only parsed again when their version number or CRC changes, and listeners are told when they do.
+ * Sections must fit in one packet. Not thread safe.
+ */
+public class PSITracker {
+	static final Logger log = LoggerFactory.getLogger("streamer");
+
+	/** Role of PID 0 */
+	public static final int ROLE_PAT = 1;
+	/** Role of the PIDs of the PMTs listed in the PAT */
+	public static final int ROLE_PMT = 2;
+	/** Role of the PID carrying the PCR of the first program */
+	public static final int ROLE_PCR = 4;
+
+	private static final int PID_COUNT = 8192;
+	private static final int TABLE_ID_PAT = 0;
+	private static final int TABLE_ID_PMT = 2;
+	private static final long NO_SECTION = -1;
+
+	/**
+	 * Told about table changes, from the thread calling {@link #update(MTSPacket)}.
+	 */
+	public interface Listener {
+		default void patChanged(PATSection pat) {
+		}
+
+		/**
+		 * @param pmt the new PMT, or null when its program left the PAT
+		 */
+		default void pmtChanged(int pid, PMTSection pmt) {
+		}
+	}
+
+	private final byte[] roles = new byte[PID_COUNT];
+	private final List<Listener> listeners = Lists.newCopyOnWriteArrayList();
+
+	private PATSection pat;
+	private long patKey = NO_SECTION;
+	private final TreeMap<Integer, PMTSection> pmts = Maps.newTreeMap();
+	private final Map<Integer, Long> pmtKeys = Maps.newHashMap();
+	private int pcrPid = -1;
+	private long parseCount;
+
+	public PSITracker() {
+		roles[0] = ROLE_PAT;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Updates the tables from packet if it carries one.
+	 *
+	 * @return the role of the PID of packet, a combination of the ROLE_ flags
+	 */
+	public int update(MTSPacket packet) {
+		int pid = packet.getPid();
+		int role = roles[pid];
+		if ((role & (ROLE_PAT | ROLE_PMT)) != 0 && packet.isPayloadUnitStartIndicator()) {
+			try {
+				updateTable(packet, pid, role);
+			} catch (RuntimeException e) {
+				log.warn("Invalid PSI section on PID {}", pid, e);
+			}
+			role = roles[pid];
+		}
+		return role;
+	}
+
+	private void updateTable(MTSPacket packet, int pid, int role) {
+		// Parsing moves the position and limit of the payload
+		ByteBuffer payload = packet.getPayload().duplicate();
+		payload.rewind();
+		int pointer = payload.get() & 0xff;
+		payload.position(payload.position() + pointer);
+
+		int start = payload.position();
+		int tableId = payload.get(start) & 0xff;
+		int w0 = payload.getShort(start + 1) & 0xffff;
+		int sectionLength = w0 & 0xfff;
+		if ((w0 & 0xC000) != 0x8000 || sectionLength < 9 || start + 3 + sectionLength > payload.limit()) {
+			return;
+		}
+		int b0 = payload.get(start + 5) & 0xff;
+		if ((b0 & 1) == 0) {
+			// Not applicable yet
+			return;
+		}
+		int crc = payload.getInt(start + 3 + sectionLength - 4);
+		long key = (long) ((b0 >> 1) & 0x1f) << 32 | (crc & 0xffffffffL);
+
+		if ((role & ROLE_PAT) != 0 && tableId == TABLE_ID_PAT) {
+			if (key != patKey) {
+				updatePat(PATSection.parse(payload), key);
+			}
+		} else if ((role & ROLE_PMT) != 0 && tableId == TABLE_ID_PMT) {
+			Long previous = pmtKeys.get(pid);
+			if (previous == null || previous != key) {
+				updatePmt(pid, PMTSection.parse(payload), key);
+			}
+		}
+	}
+
+	private void updatePat(PATSection pat, long key) {
+		parseCount++;
+		if (pat == null) {
+			return;
+		}
+		this.pat = pat;
+		this.patKey = key;
+		for (int pid = 0; pid < roles.length; pid++) {
+			if ((roles[pid] & ROLE_PMT) != 0 && !pat.getPrograms().containsValue(pid)) {
+				roles[pid] &= ~ROLE_PMT;
+				pmtKeys.remove(pid);
+				if (pmts.remove(pid) != null) {
+					for (Listener listener : listeners) {
+						listener.pmtChanged(pid, null);
+					}
+				}
+			}
+		}
+		for (int pmtPid : pat.getPrograms().values()) {
+			roles[pmtPid] |= ROLE_PMT;
+		}
+		updatePcrPid();
+		log.debug("PAT version {}, {} programs", pat.getVersionNumber(), pat.getPrograms().size());
+		for (Listener listener : listeners) {
+			listener.patChanged(pat);
+		}
+	}
+
+	private void updatePmt(int pid, PMTSection pmt, long key) {
+		parseCount++;
+		pmts.put(pid, pmt);
+		pmtKeys.put(pid, key);
+		updatePcrPid();
+		log.debug("PMT version {} on PID {}, PCR PID {}", pmt.getVersionNumber(), pid, pmt.getPcrPid());
+		for (Listener listener : listeners) {
+			listener.pmtChanged(pid, pmt);
+		}
+	}
+
+	private void updatePcrPid() {
+		// PCR of the first program
+		int newPcrPid = pmts.isEmpty() ? -1 : pmts.firstEntry().getValue().getPcrPid();
+		if (newPcrPid != pcrPid) {
+			if (pcrPid != -1) {
+				roles[pcrPid] &= ~ROLE_PCR;
+			}
+			if (newPcrPid != -1) {
+				roles[newPcrPid] |= ROLE_PCR;
+			}
+			pcrPid = newPcrPid;
+		}
+	}
+
+	/**
+	 * @return the role of pid, a combination of the ROLE_ flags
+	 */
+	public int getRole(int pid) {
+		return roles[pid];
+	}
+
+	/**
+	 * @return the PID carrying the PCR of the first program, or -1 before its PMT is known
+	 */
+	public int getPcrPid() {
+		return pcrPid;
+	}
+
+	public PATSection getPat() {
+		return pat;
+	}
+
+	/**
+	 * @return the current PMTs, by PID
+	 */
+	public Map<Integer, PMTSection> getPmts() {
+		return Collections.unmodifiableMap(pmts);
+	}
+
+	/**
+	 * @return the number of sections parsed: only the ones with a new version or CRC are
+	 */
+	public long getParseCount() {
+		return parseCount;
+	}
+}
@@ -0,0 +1,13 @@
+package org.taktik.mpegts;
+
+/**
+ * Waits for the deadline of the next packets, computed by the {@link Streamer} from their PCR.
+ */
+public interface Pacer {
+	/**
+	 * Waits until {@link System#nanoTime()} reaches deadline.
+	 *
+	 * @return how late the wait ended, in nanoseconds
+	 */
+	public long waitUntil(long deadline) throws InterruptedException;
+}
@@ -0,0 +1,271 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A reusable, fixed capacity group of packets moved in one call between sources, the streamer and sinks.
+ * <br>
+ * A batch does not own its packets: whoever fills a batch hands over one reference per packet,
+ * and whoever consumes it is responsible for releasing them (see {@link #release()}).
+ * <br>
+ * A batch can also be filled with raw data using {@link #load(java.nio.ByteBuffer)}, which copies packets into
+ * a contiguous buffer owned by the batch without creating any {@link MTSPacket}. In both cases, {@link #index()}
+ * decodes the main header fields of all packets into parallel primitive arrays, so that analysis code can scan
+ * a batch without touching packet objects.
+ */
+public class PacketBatch {
+	public static final int FLAG_TRANSPORT_ERROR = 0x01;
+	public static final int FLAG_PAYLOAD_UNIT_START = 0x02;
+	public static final int FLAG_ADAPTATION_FIELD = 0x04;
+	public static final int FLAG_PAYLOAD = 0x08;
+	public static final int FLAG_DISCONTINUITY = 0x10;
+	public static final int FLAG_RANDOM_ACCESS = 0x20;
+	public static final int FLAG_PCR = 0x40;
+
+	private final MTSPacket[] packets;
+	private int size;
+
+	// Columns, valid up to indexed
+	private final int[] pids;
+	private final int[] continuityCounters;
+	private final long[] pcrs;
+	private final int[] flags;
+	private int indexed;
+
+	// Raw packets copied by load(), packet i is at offset i * 188
+	private ByteBuffer data;
+	private boolean[] loaded;
+
+	public PacketBatch(int capacity) {
+		Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+		this.packets = new MTSPacket[capacity];
+		this.size = 0;
+		this.pids = new int[capacity];
+		this.continuityCounters = new int[capacity];
+		this.pcrs = new long[capacity];
+		this.flags = new int[capacity];
+		this.indexed = 0;
+	}
+
+	public void add(MTSPacket packet) {
+		Preconditions.checkState(size < packets.length, "Batch is full");
+		packets[size++] = packet;
+	}
+
+	/**
+	 * Replaces the packet at index. The reference to the previous packet is not released.
+	 */
+	public void set(int index, MTSPacket packet) {
+		Preconditions.checkElementIndex(index, size);
+		packets[index] = packet;
+		if (loaded != null) {
+			// The copied bytes no longer describe this slot
+			loaded[index] = false;
+		}
+		indexed = Math.min(indexed, index);
+	}
+
+	/**
+	 * Copies as many whole packets as possible from the source buffer into the batch.
+	 * Bytes preceding a sync byte are skipped. The source position is left after the last packet copied.
+	 *
+	 * @param source The source buffer
+	 * @return the number of packets loaded
+	 */
+	public int load(ByteBuffer source) {
+		if (data == null) {
+			data = ByteBuffer.allocate(packets.length * Constants.MPEGTS_PACKET_SIZE);
+			loaded = new boolean[packets.length];
+		}
+		int count = 0;
+		while (size < packets.length && source.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			int position = source.position();
+			if (source.get(position) != Constants.TS_MARKER) {
+				source.position(position + 1);
+				continue;
+			}
+			int limit = source.limit();
+			source.limit(position + Constants.MPEGTS_PACKET_SIZE);
+			data.position(size * Constants.MPEGTS_PACKET_SIZE);
+			data.put(source);
+			source.limit(limit);
+			loaded[size++] = true;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the packet at index. Packets copied by {@link #load(java.nio.ByteBuffer)} are wrapped on first access,
+	 * and are only valid until the batch is cleared.
+	 */
+	public MTSPacket get(int index) {
+		Preconditions.checkElementIndex(index, size);
+		MTSPacket packet = packets[index];
+		if (packet == null && loaded != null && loaded[index]) {
+			ByteBuffer packetBuffer = data.duplicate();
+			packetBuffer.limit((index + 1) * Constants.MPEGTS_PACKET_SIZE);
+			packetBuffer.position(index * Constants.MPEGTS_PACKET_SIZE);
+			packet = new MTSPacket(packetBuffer.slice());
+			packets[index] = packet;
+		}
+		return packet;
+	}
+
+	/**
+	 * Decodes PID, continuity counter, PCR and flags of all packets not indexed yet into the column arrays.
+	 */
+	public void index() {
+		if (indexed == size) {
+			return;
+		}
+		if (data != null) {
+			indexLoaded();
+		}
+		for (int i = indexed; i < size; i++) {
+			MTSPacket packet = packets[i];
+			if (packet != null && !(loaded != null && loaded[i])) {
+				pids[i] = packet.getPid();
+				continuityCounters[i] = packet.getContinuityCounter();
+				long pcr = packet.getPcrValue();
+				pcrs[i] = pcr;
+				int f = 0;
+				if (packet.isTransportErrorIndicator()) {
+					f |= FLAG_TRANSPORT_ERROR;
+				}
+				if (packet.isPayloadUnitStartIndicator()) {
+					f |= FLAG_PAYLOAD_UNIT_START;
+				}
+				if (packet.isAdaptationFieldExist()) {
+					f |= FLAG_ADAPTATION_FIELD;
+				}
+				if (packet.isContainsPayload()) {
+					f |= FLAG_PAYLOAD;
+				}
+				if (packet.isDiscontinuityIndicator()) {
+					f |= FLAG_DISCONTINUITY;
+				}
+				if (packet.isRandomAccessIndicator()) {
+					f |= FLAG_RANDOM_ACCESS;
+				}
+				if (pcr >= 0) {
+					f |= FLAG_PCR;
+				}
+				flags[i] = f;
+			}
+		}
+		indexed = size;
+	}
+
+	private void indexLoaded() {
+		byte[] d = data.array();
+		int base = data.arrayOffset();
+		for (int i = indexed; i < size; i++) {
+			if (!loaded[i]) {
+				continue;
+			}
+			int o = base + i * Constants.MPEGTS_PACKET_SIZE;
+			int b1 = d[o + 1] & 0xff;
+			int b3 = d[o + 3] & 0xff;
+			pids[i] = ((b1 & 0x1f) << 8) | (d[o + 2] & 0xff);
+			continuityCounters[i] = b3 & 0x0f;
+			int f = ((b1 >> 7) & 0x1)				// FLAG_TRANSPORT_ERROR
+					| ((b1 >> 5) & 0x2)				// FLAG_PAYLOAD_UNIT_START
+					| ((b3 >> 3) & 0x4)				// FLAG_ADAPTATION_FIELD
+					| ((b3 >> 1) & 0x8);			// FLAG_PAYLOAD
+			long pcr = -1;
+			if ((b3 & 0x20) != 0 && (d[o + 4] & 0xff) > 0) {
+				int afFlags = d[o + 5] & 0xff;
+				f |= ((afFlags >> 3) & 0x10)		// FLAG_DISCONTINUITY
+						| ((afFlags >> 1) & 0x20);	// FLAG_RANDOM_ACCESS
+				if ((afFlags & 0x10) != 0 && (d[o + 4] & 0xff) >= 7) {
+					f |= FLAG_PCR;
+					long pcrBase = ((d[o + 6] & 0xffL) << 25) | ((d[o + 7] & 0xffL) << 17) | ((d[o + 8] & 0xffL) << 9) | ((d[o + 9] & 0xffL) << 1) | ((d[o + 10] & 0x80L) >> 7);
+					pcr = pcrBase * 300 + (((d[o + 10] & 0x01) << 8) | (d[o + 11] & 0xff));
+				}
+			}
+			pcrs[i] = pcr;
+			flags[i] = f;
+		}
+	}
+
+	/**
+	 * @return the PID column, valid up to {@link #size()} after {@link #index()}
+	 */
+	public int[] getPids() {
+		index();
+		return pids;
+	}
+
+	/**
+	 * @return the continuity counter column, valid up to {@link #size()} after {@link #index()}
+	 */
+	public int[] getContinuityCounters() {
+		index();
+		return continuityCounters;
+	}
+
+	/**
+	 * @return the PCR column (-1 when a packet has no PCR), valid up to {@link #size()} after {@link #index()}
+	 */
+	public long[] getPcrs() {
+		index();
+		return pcrs;
+	}
+
+	/**
+	 * @return the flags column (see FLAG_* constants), valid up to {@link #size()} after {@link #index()}
+	 */
+	public int[] getFlags() {
+		index();
+		return flags;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return packets.length;
+	}
+
+	public int remaining() {
+		return packets.length - size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isFull() {
+		return size == packets.length;
+	}
+
+	/**
+	 * Removes all packets from the batch, without releasing them.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			packets[i] = null;
+			if (loaded != null) {
+				loaded[i] = false;
+			}
+		}
+		size = 0;
+		indexed = 0;
+	}
+
+	/**
+	 * Releases all packets of the batch, then clears it.
+	 */
+	public void release() {
+		for (int i = 0; i < size; i++) {
+			if (packets[i] != null) {
+				packets[i].release();
+			}
+		}
+		clear();
+	}
+}
@@ -0,0 +1,136 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A pool of reusable {@link MTSPacket}s, each one owning its own 188 bytes buffer.
+ * <br>
+ * Sources copy incoming data into pooled packets with {@link #acquire(java.nio.ByteBuffer)}.
+ * A packet goes back to the pool when its reference count drops to zero (see {@link MTSPacket#release()}),
+ * so that a steady-state stream does not allocate anything per packet.
+ * When the pool is empty a new packet is allocated, when it is full released packets are left to the garbage collector.
+ */
+public class PacketPool {
+	private final ArrayBlockingQueue<MTSPacket> packets;
+	private final boolean direct;
+	private final AtomicLong allocatedCount;
+
+	private PacketPool(int capacity, boolean direct, int preallocate) {
+		this.packets = new ArrayBlockingQueue<>(capacity);
+		this.direct = direct;
+		this.allocatedCount = new AtomicLong();
+		for (int i = 0; i < preallocate; i++) {
+			packets.offer(newPacket());
+		}
+	}
+
+	/**
+	 * Copies the next 188 bytes of the source buffer into a pooled packet.
+	 * The position of the source buffer is advanced by 188 bytes.
+	 *
+	 * @param source The source buffer
+	 * @return a packet with a reference count of 1
+	 * @throws IllegalArgumentException if the data is not a valid MPEG-TS packet
+	 */
+	public MTSPacket acquire(ByteBuffer source) {
+		MTSPacket packet = take();
+		ByteBuffer target = packet.buffer;
+		target.clear();
+		int limit = source.limit();
+		source.limit(source.position() + Constants.MPEGTS_PACKET_SIZE);
+		target.put(source);
+		source.limit(limit);
+		return reload(packet);
+	}
+
+	/**
+	 * Copies 188 bytes of the source array, starting at offset, into a pooled packet.
+	 *
+	 * @return a packet with a reference count of 1
+	 * @throws IllegalArgumentException if the data is not a valid MPEG-TS packet
+	 */
+	public MTSPacket acquire(byte[] source, int offset) {
+		MTSPacket packet = take();
+		ByteBuffer target = packet.buffer;
+		target.clear();
+		target.put(source, offset, Constants.MPEGTS_PACKET_SIZE);
+		return reload(packet);
+	}
+
+	void recycle(MTSPacket packet) {
+		packets.offer(packet);
+	}
+
+	/**
+	 * @return the number of packets currently available in the pool
+	 */
+	public int getAvailableCount() {
+		return packets.size();
+	}
+
+	/**
+	 * @return the total number of packets allocated by this pool
+	 */
+	public long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	private MTSPacket take() {
+		MTSPacket packet = packets.poll();
+		return packet != null ? packet : newPacket();
+	}
+
+	private MTSPacket reload(MTSPacket packet) {
+		try {
+			packet.reload();
+		} catch (RuntimeException e) {
+			recycle(packet);
+			throw e;
+		}
+		return packet;
+	}
+
+	private MTSPacket newPacket() {
+		allocatedCount.incrementAndGet();
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(Constants.MPEGTS_PACKET_SIZE) : ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+		return new MTSPacket(this, buffer);
+	}
+
+	public static PacketPoolBuilder builder() {
+		return new PacketPoolBuilder();
+	}
+
+	public static class PacketPoolBuilder {
+		private int capacity = 4096;
+		private boolean direct = false;
+		private int preallocate = 0;
+
+		private PacketPoolBuilder() {
+		}
+
+		public PacketPoolBuilder setCapacity(int capacity) {
+			this.capacity = capacity;
+			return this;
+		}
+
+		public PacketPoolBuilder setDirect(boolean direct) {
+			this.direct = direct;
+			return this;
+		}
+
+		public PacketPoolBuilder setPreallocate(int preallocate) {
+			this.preallocate = preallocate;
+			return this;
+		}
+
+		public PacketPool build() {
+			Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+			Preconditions.checkArgument(preallocate >= 0 && preallocate <= capacity, "preallocate must be between 0 and capacity");
+			return new PacketPool(capacity, direct, preallocate);
+		}
+	}
+}
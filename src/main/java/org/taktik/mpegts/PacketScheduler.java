@@ -0,0 +1,114 @@
+package org.taktik.mpegts;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out when the packets of a stream must leave, from its PCRs: follows the PAT and PMTs with a {@link PSITracker}
+ * to find the PCR PID, and computes the departure deadline ({@link System#nanoTime()} based) of PCR packets, and in
+ * {@link Streamer.PacingMode#INTERPOLATED} mode of the packets between them.
+ * <br>
+ * Packets must be scheduled in stream order, right before they leave. Not thread safe.
+ */
+class PacketScheduler {
+	static final Logger log = LoggerFactory.getLogger("streamer");
+
+	/** Returned by {@link #schedule(MTSPacket)} for packets that can leave right away */
+	static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	private final Streamer.PacingMode pacingMode;
+	private final int interpolationPackets;
+
+	private final PSITracker psiTracker = new PSITracker();
+
+	private boolean resetState;
+	// PCR values are never negative, -1 until the first PCR
+	private long firstPcrValue = -1;
+	private long firstPcrTime;
+	private long lastPcrValue = -1;
+	// Interpolation state: deadline of the last PCR, packets sent since, and estimated time between packets
+	private long lastPcrDeadline;
+	private long packetsSincePcr;
+	private long packetIntervalNanos;
+	private long pcrIntervalNanos;
+
+	PacketScheduler(Streamer.PacingMode pacingMode, int interpolationPackets) {
+		this.pacingMode = pacingMode;
+		this.interpolationPackets = interpolationPackets;
+	}
+
+	/**
+	 * @return the deadline of the packet, or {@link #NO_DEADLINE} if it can leave right away
+	 */
+	long schedule(MTSPacket packet) {
+		if (resetState) {
+			firstPcrValue = -1;
+			lastPcrValue = -1;
+			// No interpolation until the transport rate is measured again
+			packetIntervalNanos = 0;
+			resetState = false;
+		}
+
+		long deadline = NO_DEADLINE;
+		int pid = packet.getPid();
+		int role = psiTracker.update(packet);
+
+		packetsSincePcr++;
+
+		// Check for PCR
+		if (packet.hasPcr()) {
+			if ((role & PSITracker.ROLE_PCR) != 0) {
+				if (!packet.isDiscontinuityIndicator()) {
+					// Get PCR and current nano time
+					long pcrValue = packet.getPcrValue();
+					long pcrTime = System.nanoTime();
+
+					// Deadline of this packet, relative to the first PCR so that rounding errors do not add up
+					if (firstPcrValue < 0) {
+						firstPcrValue = pcrValue;
+						firstPcrTime = pcrTime;
+						lastPcrDeadline = pcrTime;
+						packetsSincePcr = 0;
+					} else if (pcrValue <= lastPcrValue) {
+						log.warn("PCR discontinuity on PID {}", pid);
+						resetState = true;
+					} else {
+						long pcrDeadline = firstPcrTime + (pcrValue - firstPcrValue) * 1000 / 27;
+						// Safety : We should never have to wait more than 100ms
+						if (pcrDeadline - pcrTime > 100000000) {
+							log.warn("PCR sleep ignored, too high !");
+							resetState = true;
+						} else {
+							deadline = pcrDeadline;
+							// Transport rate between the last two PCRs, used until the next one
+							pcrIntervalNanos = pcrDeadline - lastPcrDeadline;
+							packetIntervalNanos = pcrIntervalNanos / packetsSincePcr;
+							lastPcrDeadline = pcrDeadline;
+							packetsSincePcr = 0;
+						}
+					}
+
+					// Set lastPcrValue
+					lastPcrValue = pcrValue;
+				} else {
+					log.warn("Skipped PCR - Discontinuity indicator");
+				}
+			} else {
+				log.debug("Skipped PCR - PID does not match");
+			}
+		}
+
+		// Departure time of packets between two PCRs, at the rate measured between the previous ones
+		if (pacingMode == Streamer.PacingMode.INTERPOLATED && deadline == NO_DEADLINE && packetIntervalNanos > 0
+				&& packetsSincePcr % interpolationPackets == 0) {
+			// Never later than the next PCR is expected
+			deadline = lastPcrDeadline + Math.min(packetsSincePcr * packetIntervalNanos, pcrIntervalNanos);
+		}
+
+		return deadline;
+	}
+
+	PSITracker getPsiTracker() {
+		return psiTracker;
+	}
+}
@@ -6,17 +6,22 @@ import java.nio.ByteBuffer;
 public abstract class PacketSupport {
 	protected ByteBuffer buffer;
 	protected boolean dirty;
+	protected boolean parsed;
 
 	public PacketSupport() {
 		dirty = false;
+		parsed = true;
 	}
 
+	/**
+	 * Wraps an existing buffer. The buffer is not parsed until {@link #ensureParsed()} is called,
+	 * subclasses are expected to decode simple fields directly from the buffer until then.
+	 */
 	public PacketSupport(ByteBuffer buffer) {
 		this.buffer = buffer;
 		buffer.rewind();
-		parse();
-		buffer.rewind();
 		dirty = false;
+		parsed = false;
 	}
 
 	public ByteBuffer getBuffer() {
@@ -28,6 +33,15 @@ public abstract class PacketSupport {
 		return buffer;
 	}
 
+	protected void ensureParsed() {
+		if (!parsed) {
+			buffer.rewind();
+			parse();
+			buffer.rewind();
+			parsed = true;
+		}
+	}
+
 	protected abstract void parse();
 	protected abstract void write();
 
@@ -0,0 +1,104 @@
+package org.taktik.mpegts;
+
+import java.util.Arrays;
+
+/**
+ * Per PID packet, continuity error and PCR counters, computed from the columns of {@link PacketBatch}es.
+ */
+public class PidStatistics {
+	private static final int PID_COUNT = 8192;
+
+	private final long[] packetCounts;
+	private final long[] continuityErrors;
+	private final long[] pcrCounts;
+	private final long[] transportErrors;
+	private final int[] lastContinuityCounters;
+	private long totalPackets;
+
+	public PidStatistics() {
+		packetCounts = new long[PID_COUNT];
+		continuityErrors = new long[PID_COUNT];
+		pcrCounts = new long[PID_COUNT];
+		transportErrors = new long[PID_COUNT];
+		lastContinuityCounters = new int[PID_COUNT];
+		Arrays.fill(lastContinuityCounters, -1);
+	}
+
+	public void update(PacketBatch batch) {
+		int size = batch.size();
+		int[] pids = batch.getPids();
+		int[] continuityCounters = batch.getContinuityCounters();
+		int[] flags = batch.getFlags();
+		for (int i = 0; i < size; i++) {
+			int pid = pids[i];
+			int f = flags[i];
+			int cc = continuityCounters[i];
+			packetCounts[pid]++;
+			if ((f & PacketBatch.FLAG_PCR) != 0) {
+				pcrCounts[pid]++;
+			}
+			if ((f & PacketBatch.FLAG_TRANSPORT_ERROR) != 0) {
+				transportErrors[pid]++;
+			}
+			int last = lastContinuityCounters[pid];
+			if (last >= 0 && pid != 0x1fff && (f & PacketBatch.FLAG_DISCONTINUITY) == 0) {
+				// The counter only increments with a payload, a single duplicate packet is allowed
+				int expected = (f & PacketBatch.FLAG_PAYLOAD) != 0 ? (last + 1) & 0x0f : last;
+				if (cc != expected && cc != last) {
+					continuityErrors[pid]++;
+				}
+			}
+			lastContinuityCounters[pid] = cc;
+		}
+		totalPackets += size;
+	}
+
+	public long getTotalPackets() {
+		return totalPackets;
+	}
+
+	public long getPacketCount(int pid) {
+		return packetCounts[pid];
+	}
+
+	public long getContinuityErrors(int pid) {
+		return continuityErrors[pid];
+	}
+
+	public long getPcrCount(int pid) {
+		return pcrCounts[pid];
+	}
+
+	public long getTransportErrors(int pid) {
+		return transportErrors[pid];
+	}
+
+	/**
+	 * @return the PIDs seen so far, in ascending order
+	 */
+	public int[] getPids() {
+		int count = 0;
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			if (packetCounts[pid] > 0) {
+				count++;
+			}
+		}
+		int[] result = new int[count];
+		int i = 0;
+		for (int pid = 0; pid < PID_COUNT; pid++) {
+			if (packetCounts[pid] > 0) {
+				result[i++] = pid;
+			}
+		}
+		return result;
+	}
+
+	public void reset() {
+		Arrays.fill(packetCounts, 0);
+		Arrays.fill(continuityErrors, 0);
+		Arrays.fill(pcrCounts, 0);
+		Arrays.fill(transportErrors, 0);
+		Arrays.fill(lastContinuityCounters, -1);
+		totalPackets = 0;
+	}
+}
@@ -0,0 +1,74 @@
+package org.taktik.mpegts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes RTP headers (RFC 3550) in place, for MPEG-TS over RTP (RFC 2250).
+ * All methods use absolute indexes and leave the buffer position untouched.
+ */
+public class RTPHeader {
+	public static final int HEADER_SIZE = 12;
+	public static final int PAYLOAD_TYPE_MP2T = 33;
+	public static final int CLOCK_RATE = 90_000;
+
+	private static final int VERSION = 2;
+
+	private RTPHeader() {
+	}
+
+	/**
+	 * Writes a 12 bytes header without CSRC nor extension, for an MPEG-TS payload.
+	 */
+	public static void write(ByteBuffer buffer, int offset, int sequenceNumber, long timestamp, int ssrc) {
+		buffer.put(offset, (byte) (VERSION << 6));
+		buffer.put(offset + 1, (byte) PAYLOAD_TYPE_MP2T);
+		buffer.putShort(offset + 2, (short) sequenceNumber);
+		buffer.putInt(offset + 4, (int) timestamp);
+		buffer.putInt(offset + 8, ssrc);
+	}
+
+	/**
+	 * @return true if the data at offset looks like an RTP header rather than a MPEG-TS packet
+	 */
+	public static boolean isRTP(ByteBuffer buffer, int offset, int length) {
+		return length >= HEADER_SIZE && ((buffer.get(offset) & 0xff) >> 6) == VERSION;
+	}
+
+	/**
+	 * @return the length of the header, including CSRCs and header extension
+	 */
+	public static int getHeaderLength(ByteBuffer buffer, int offset) {
+		int first = buffer.get(offset) & 0xff;
+		int length = HEADER_SIZE + (first & 0x0f) * 4;
+		if ((first & 0x10) != 0) {
+			length += 4 + (buffer.getShort(offset + length + 2) & 0xffff) * 4;
+		}
+		return length;
+	}
+
+	/**
+	 * @return the number of padding bytes at the end of an RTP packet of the given length
+	 */
+	public static int getPaddingLength(ByteBuffer buffer, int offset, int length) {
+		if ((buffer.get(offset) & 0x20) == 0) {
+			return 0;
+		}
+		return buffer.get(offset + length - 1) & 0xff;
+	}
+
+	public static int getPayloadType(ByteBuffer buffer, int offset) {
+		return buffer.get(offset + 1) & 0x7f;
+	}
+
+	public static int getSequenceNumber(ByteBuffer buffer, int offset) {
+		return buffer.getShort(offset + 2) & 0xffff;
+	}
+
+	public static long getTimestamp(ByteBuffer buffer, int offset) {
+		return buffer.getInt(offset + 4) & 0xffffffffL;
+	}
+
+	public static int getSsrc(ByteBuffer buffer, int offset) {
+		return buffer.getInt(offset + 8);
+	}
+}
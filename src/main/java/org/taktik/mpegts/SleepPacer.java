@@ -0,0 +1,16 @@
+package org.taktik.mpegts;
+
+/**
+ * Waits with {@link Thread#sleep(long, int)}, which usually ends 50 to 100 microseconds late, or more on a loaded system.
+ * Cheapest on CPU.
+ */
+public class SleepPacer implements Pacer {
+	@Override
+	public long waitUntil(long deadline) throws InterruptedException {
+		long remaining = deadline - System.nanoTime();
+		if (remaining > 0) {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+		}
+		return System.nanoTime() - deadline;
+	}
+}
@@ -1,43 +1,71 @@
 package org.taktik.mpegts;
 
-import java.nio.ByteBuffer;
-import java.util.TreeMap;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.function.BooleanSupplier;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Maps;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.taktik.ioutils.RingBuffer;
+import org.taktik.ioutils.WaitStrategies;
+import org.taktik.ioutils.WaitStrategy;
 import org.taktik.mpegts.sinks.MTSSink;
 import org.taktik.mpegts.sources.MTSSource;
 
 public class Streamer {
 	static final Logger log = LoggerFactory.getLogger("streamer");
 
+	public enum PacingMode {
+		/** Waits for the deadline of PCR packets only, the packets between two PCRs are sent at once */
+		PCR,
+		/** Also spreads the packets between two PCRs evenly, at the transport rate measured between the previous two PCRs */
+		INTERPOLATED
+	}
+
 	private MTSSource source;
 	private MTSSink sink;
+	private Pacer pacer;
+	private PacingMode pacingMode;
+	private int interpolationPackets;
 
-	private ArrayBlockingQueue<MTSPacket> buffer;
+	// Lock-free, between the buffering thread (the only producer) and the streaming thread
+	private RingBuffer<MTSPacket> buffer;
 	private int bufferSize;
-	private boolean endOfSourceReached;
-	private boolean streamingShouldStop;
+	private int batchSize;
+	private WaitStrategy waitStrategy;
+	private List<PSITracker.Listener> tableListeners;
+	private volatile boolean endOfSourceReached;
+	private volatile boolean streamingShouldStop;
+	private volatile int minBufferOccupancy;
 
-	private PATSection patSection;
-	private TreeMap<Integer,PMTSection> pmtSection;
+	// Conditions the buffering and streaming threads wait for, allocated once
+	private final BooleanSupplier packetsAvailable = () -> !buffer.isEmpty() || endOfSourceReached || streamingShouldStop;
+	private final BooleanSupplier roomAvailable = () -> buffer.capacity() - buffer.size() >= batchSize || streamingShouldStop;
 
 	private Thread bufferingThread;
 	private Thread streamingThread;
 
-	private Streamer(MTSSource source, MTSSink sink, int bufferSize) {
+	private volatile long waitCount;
+	private volatile long overshootNanos;
+	private volatile long maxOvershootNanos;
+
+	private Streamer(MTSSource source, MTSSink sink, Pacer pacer, PacingMode pacingMode, int interpolationPackets, int bufferSize, int batchSize, WaitStrategy waitStrategy, List<PSITracker.Listener> tableListeners) {
 		this.source = source;
 		this.sink = sink;
+		this.pacer = pacer;
+		this.pacingMode = pacingMode;
+		this.interpolationPackets = interpolationPackets;
 		this.bufferSize = bufferSize;
+		this.batchSize = batchSize;
+		this.waitStrategy = waitStrategy;
+		this.tableListeners = tableListeners;
 	}
 
 	public void stream() {
-		buffer = new ArrayBlockingQueue<>(bufferSize);
-		patSection = null;
-		pmtSection = Maps.newTreeMap();
+		buffer = new RingBuffer<>(bufferSize);
+		minBufferOccupancy = buffer.capacity();
 		endOfSourceReached = false;
 		streamingShouldStop = false;
 		log.info("PreBuffering {} packets", bufferSize);
@@ -57,219 +85,198 @@ public class Streamer {
 
 	public void stop() {
 		streamingShouldStop = true;
-		buffer.clear();
+		waitStrategy.signal();
+		releaseBuffer();
 		try {
 			bufferingThread.join();
 			streamingThread.join();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
+		releaseBuffer();
 		buffer = null;
 		bufferingThread = streamingThread = null;
 	}
 
+	private void releaseBuffer() {
+		MTSPacket packet;
+		while ((packet = buffer.poll()) != null) {
+			packet.release();
+		}
+	}
+
 	private void internalStream() {
-		boolean resetState = false;
 		MTSPacket packet;
+		PacketBatch batch = new PacketBatch(batchSize);
+		PacketScheduler scheduler = new PacketScheduler(pacingMode, interpolationPackets);
+		for (PSITracker.Listener listener : tableListeners) {
+			scheduler.getPsiTracker().addListener(listener);
+		}
 		long packetCount = 0;
-		long pcrCount = 0;
-		//long pcrPidPacketCount = 0;
-		Long firstPcrValue = null;
-		Long firstPcrTime = null;
-		//Long firstPcrPacketCount = null;
-		Long lastPcrValue = null;
-		Long lastPcrTime = null;
-		//Long lastPcrPacketCount = null;
-		Long averageSleep = null;
 		while (!streamingShouldStop) {
-			if (resetState) {
-				pcrCount = 0;
-				firstPcrValue = null;
-				firstPcrTime = null;
-				lastPcrValue = null;
-				lastPcrTime = null;
-				averageSleep = null;
-				resetState = false;
-			}
-
-			// Initialize time to sleep
-			long sleepNanos = 0;
-
 			packet = buffer.poll();
 
 			if (packet == null) {
+				// Nothing more to group with pending packets
+				send(batch);
 				if (endOfSourceReached) {
 					packet = buffer.poll();
 					if (packet == null) {
 						break;
 					}
 				} else {
-					continue;
-				}
-			}
-
-			int pid = packet.getPid();
-
-			if (pid == 0 && packet.isPayloadUnitStartIndicator()) {
-				ByteBuffer payload = packet.getPayload();
-				payload.rewind();
-				int pointer = payload.get() & 0xff;
-				payload.position(payload.position() + pointer);
-				patSection = PATSection.parse(payload);
-				for (Integer pmtPid : pmtSection.keySet()) {
-					if (!patSection.getPrograms().values().contains(pmtPid)) {
-						pmtSection.remove(pmtPid);
-					}
-				}
-			}
-
-			if (pid != 0 && patSection!=null) {
-				if (patSection.getPrograms().values().contains(pid)) {
-					if (packet.isPayloadUnitStartIndicator()) {
-						ByteBuffer payload = packet.getPayload();
-						payload.rewind();
-						int pointer = payload.get() & 0xff;
-						payload.position(payload.position() + pointer);
-						pmtSection.put(pid, PMTSection.parse(payload));
+					flush();
+					try {
+						waitStrategy.waitFor(packetsAvailable);
+					} catch (InterruptedException ignored) {
 					}
+					continue;
 				}
-
 			}
 
-			// Check PID matches PCR PID
-			if (true) {//mtsPacket.pid == pmt.getPcrPid()) {
-				//pcrPidPacketCount++;
-
-				if (averageSleep != null) {
-					sleepNanos = averageSleep;
-				} else {
-//						if (pcrPidPacketCount < 2) {
-//							if (pcrPidPacketCount % 10 == 0) {
-//								sleepNanos = 15;
-//							}
-//						}
-				}
+			int occupancy = buffer.size();
+			if (occupancy < minBufferOccupancy) {
+				minBufferOccupancy = occupancy;
 			}
 
-			// Check for PCR
-			if (packet.getAdaptationField() != null) {
-				if (packet.getAdaptationField().getPcr() != null) {
-					if (packet.getPid() == getPCRPid()) {
-						if (!packet.getAdaptationField().isDiscontinuityIndicator()) {
-							// Get PCR and current nano time
-							long pcrValue = packet.getAdaptationField().getPcr().getValue();
-							long pcrTime = System.nanoTime();
-							pcrCount++;
-
-							// Compute sleepNanosOrig
-							Long sleepNanosOrig = null;
-							if (firstPcrValue == null || firstPcrTime == null) {
-								firstPcrValue = pcrValue;
-								firstPcrTime = pcrTime;
-								//firstPcrPacketCount = pcrPidPacketCount;
-							} else if (pcrValue > firstPcrValue) {
-								sleepNanosOrig = ((pcrValue - firstPcrValue) / 27 * 1000) - (pcrTime - firstPcrTime);
-							}
-
-							// Compute sleepNanosPrevious
-							Long sleepNanosPrevious = null;
-							if (lastPcrValue != null && lastPcrTime != null) {
-								if (pcrValue <= lastPcrValue) {
-									System.err.println("PCR discontinuity ! "  + packet.getPid());
-									resetState = true;
-								} else {
-									sleepNanosPrevious = ((pcrValue - lastPcrValue) / 27 * 1000) - (pcrTime - lastPcrTime);
-								}
-							}
-//								System.out.println("pcrValue=" + pcrValue + ", lastPcrValue=" + lastPcrValue + ", sleepNanosPrevious=" + sleepNanosPrevious + ", sleepNanosOrig=" + sleepNanosOrig);
-
-							// Set sleep time based on PCR if possible
-							if (sleepNanosPrevious != null) {
-								// Safety : We should never have to wait more than 100ms
-								if (sleepNanosPrevious > 100000000) {
-									log.warn("PCR sleep ignored, too high !");
-									resetState = true;
-								} else {
-									sleepNanos = sleepNanosPrevious;
-//										averageSleep = sleepNanosPrevious / (pcrPidPacketCount - lastPcrPacketCount - 1);
-								}
-							}
-
-							// Set lastPcrValue/lastPcrTime
-							lastPcrValue = pcrValue;
-							lastPcrTime = pcrTime + sleepNanos;
-							//lastPcrPacketCount = pcrPidPacketCount;
-						} else {
-							log.warn("Skipped PCR - Discontinuity indicator");
-						}
-					} else {
-						log.debug("Skipped PCR - PID does not match");
-					}
-				}
-			}
+			long deadline = scheduler.schedule(packet);
 
-			// Sleep if needed
+			// Wait if needed
+			long sleepNanos = deadline != PacketScheduler.NO_DEADLINE ? deadline - System.nanoTime() : 0;
 			if (sleepNanos > 0) {
+				// Packets preceding this one must not be delayed
+				send(batch);
+				flush();
+
 				log.trace("Sleeping " + sleepNanos / 1000000 + " millis, " + sleepNanos % 1000000 + " nanos");
 				try {
-					Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+					recordOvershoot(pacer.waitUntil(deadline));
 				} catch (InterruptedException e) {
 					log.warn("Streaming sleep interrupted!");
 				}
 			}
 
 			// Stream packet
-			// System.out.println("Streaming packet #" + packetCount + ", PID=" + mtsPacket.getPid() + ", pcrCount=" + pcrCount + ", continuityCounter=" + mtsPacket.getContinuityCounter());
-
-			try {
-				sink.send(packet);
-			} catch (Exception e) {
-				log.error("Error sending packet to sink", e);
+			batch.add(packet);
+			if (batch.isFull()) {
+				send(batch);
 			}
 
 			packetCount++;
 		}
+		send(batch);
+		flush();
 		log.info("Sent {} MPEG-TS packets", packetCount);
 	}
 
+	/**
+	 * @return the number of packets read in advance, waiting to be streamed
+	 */
+	public int getBufferOccupancy() {
+		RingBuffer<MTSPacket> buffer = this.buffer;
+		return buffer != null ? buffer.size() : 0;
+	}
+
+	/**
+	 * @return the lowest number of packets seen waiting since streaming started: close to 0, the source barely keeps up
+	 */
+	public int getMinBufferOccupancy() {
+		return minBufferOccupancy;
+	}
+
+	private void recordOvershoot(long overshoot) {
+		waitCount++;
+		overshootNanos += overshoot;
+		if (overshoot > maxOvershootNanos) {
+			maxOvershootNanos = overshoot;
+		}
+	}
+
+	/**
+	 * @return the number of times the streaming thread waited for the deadline of a packet
+	 */
+	public long getWaitCount() {
+		return waitCount;
+	}
+
+	/**
+	 * @return how late waits ended on average, in nanoseconds
+	 */
+	public long getAverageOvershootNanos() {
+		long count = waitCount;
+		return count > 0 ? overshootNanos / count : 0;
+	}
+
+	/**
+	 * @return how late a wait ended at worst, in nanoseconds
+	 */
+	public long getMaxOvershootNanos() {
+		return maxOvershootNanos;
+	}
+
+	private void send(PacketBatch batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			sink.send(batch);
+		} catch (Exception e) {
+			log.error("Error sending packet to sink", e);
+		} finally {
+			// Give pooled buffers back, sinks retain the packets they keep
+			batch.release();
+			// The buffering thread may be waiting for room
+			waitStrategy.signal();
+		}
+	}
+
+	private void flush() {
+		try {
+			// Nothing is sent until the wait is over
+			sink.flush();
+		} catch (Exception e) {
+			log.error("Error flushing sink", e);
+		}
+	}
+
 	private void preBuffer() throws Exception {
 		MTSPacket packet;
 		int packetNumber = 0;
 		while ((packetNumber < bufferSize) && (packet = source.nextPacket()) != null) {
-			buffer.add(packet);
+			buffer.offer(packet);
 			packetNumber++;
 		}
 	}
 
 	private void fillBuffer() {
+		PacketBatch batch = new PacketBatch(batchSize);
 		try {
-			MTSPacket packet;
-			while (!streamingShouldStop && (packet = source.nextPacket()) != null) {
-				boolean put = false;
-				while (!put) {
-					try {
-						buffer.put(packet);
-						put = true;
-					} catch (InterruptedException ignored) {
+			while (!streamingShouldStop && source.nextPackets(batch) > 0) {
+				for (int i = 0; i < batch.size(); i++) {
+					MTSPacket packet = batch.get(i);
+					while (!buffer.offer(packet)) {
+						if (streamingShouldStop) {
+							packet.release();
+							break;
+						}
+						try {
+							waitStrategy.waitFor(roomAvailable);
+						} catch (InterruptedException ignored) {
 
+						}
 					}
 				}
+				batch.clear();
+				waitStrategy.signal();
 			}
 		} catch (Exception e) {
 			log.error("Error reading from source", e);
 		} finally {
 			endOfSourceReached = true;
+			waitStrategy.signal();
 		}
 	}
 
-	private int getPCRPid() {
-		if ((!pmtSection.isEmpty())) {
-			// TODO change this
-			return pmtSection.values().iterator().next().getPcrPid();
-		}
-		return -1;
-	}
-
 	public static StreamerBuilder builder() {
 		return new StreamerBuilder();
 	}
@@ -277,7 +284,13 @@ public class Streamer {
 	public static class StreamerBuilder {
 		private MTSSink sink;
 		private MTSSource source;
+		private Pacer pacer = new HybridPacer();
+		private PacingMode pacingMode = PacingMode.PCR;
+		private int interpolationPackets = 7;
 		private int bufferSize = 1000;
+		private int batchSize = 64;
+		private WaitStrategy waitStrategy = WaitStrategies.parking(100_000);
+		private List<PSITracker.Listener> tableListeners = Lists.newArrayList();
 
 		public StreamerBuilder setSink(MTSSink sink) {
 			this.sink = sink;
@@ -289,15 +302,66 @@ public class Streamer {
 			return this;
 		}
 
+		/**
+		 * How the streaming thread waits for the deadline of packets, a {@link HybridPacer} by default.
+		 */
+		public StreamerBuilder setPacer(Pacer pacer) {
+			this.pacer = pacer;
+			return this;
+		}
+
+		/**
+		 * Whether packets between two PCRs are spread evenly, {@link PacingMode#PCR} (they are not) by default.
+		 */
+		public StreamerBuilder setPacingMode(PacingMode pacingMode) {
+			this.pacingMode = pacingMode;
+			return this;
+		}
+
+		/**
+		 * In {@link PacingMode#INTERPOLATED} mode, number of packets sent at once between two waits, 7 (one UDP datagram) by default.
+		 */
+		public StreamerBuilder setInterpolationPackets(int interpolationPackets) {
+			this.interpolationPackets = interpolationPackets;
+			return this;
+		}
+
 		public StreamerBuilder setBufferSize(int bufferSize) {
 			this.bufferSize = bufferSize;
 			return this;
 		}
 
+		/**
+		 * How the buffering and streaming threads wait for each other, parking for 100 microseconds by default.
+		 * See {@link WaitStrategies}.
+		 */
+		public StreamerBuilder setWaitStrategy(WaitStrategy waitStrategy) {
+			this.waitStrategy = waitStrategy;
+			return this;
+		}
+
+		/**
+		 * Told about PAT and PMT changes, from the streaming thread.
+		 */
+		public StreamerBuilder addTableListener(PSITracker.Listener listener) {
+			this.tableListeners.add(listener);
+			return this;
+		}
+
+		public StreamerBuilder setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
 		public Streamer build() {
 			Preconditions.checkNotNull(sink);
 			Preconditions.checkNotNull(source);
-			return new Streamer(source, sink, bufferSize);
+			Preconditions.checkNotNull(pacer);
+			Preconditions.checkNotNull(pacingMode);
+			Preconditions.checkNotNull(waitStrategy);
+			Preconditions.checkArgument(interpolationPackets > 0, "interpolationPackets must be positive");
+			Preconditions.checkArgument(batchSize > 0 && batchSize <= bufferSize, "batchSize must be between 1 and bufferSize");
+			return new Streamer(source, sink, pacer, pacingMode, interpolationPackets, bufferSize, batchSize, waitStrategy, ImmutableList.copyOf(tableListeners));
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,569 @@
+package org.taktik.mpegts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.ioutils.RingBuffer;
+import org.taktik.ioutils.TimerWheel;
+import org.taktik.mpegts.sinks.MTSSink;
+import org.taktik.mpegts.sources.MTSSource;
+
+/**
+ * Streams many channels with a fixed number of threads, where each {@link Streamer} needs two of its own.
+ * <br>
+ * Sources are read ahead on a small I/O pool, into a {@link RingBuffer} per channel. A few scheduler threads pace all
+ * channels: each one keeps its channels in a {@link TimerWheel}, ordered by the deadline of their next packet, sends the
+ * packets of the channels that are due, and waits for the next deadline. Sinks are called from scheduler threads and
+ * must not block, wrap slow ones in an {@link org.taktik.mpegts.sinks.AsyncSink}.
+ * <br>
+ * Channels can be added and removed while the engine runs. Each channel reports its lag: how late its packets leave
+ * compared to their deadline.
+ */
+public class StreamingEngine {
+	static final Logger log = LoggerFactory.getLogger("streamer");
+
+	// Batches a channel may send in one go before letting the other channels of its scheduler through
+	private static final int MAX_BATCHES_PER_TURN = 16;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final Streamer.PacingMode pacingMode;
+	private final int interpolationPackets;
+	private final int bufferSize;
+	private final int batchSize;
+	private final long spinNanos;
+	private final ExecutorService ioPool;
+	private final ChannelScheduler[] schedulers;
+	private final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	private StreamingEngine(int ioThreads, int schedulerThreads, long tickNanos, long spinNanos, Streamer.PacingMode pacingMode, int interpolationPackets, int bufferSize, int batchSize) {
+		this.pacingMode = pacingMode;
+		this.interpolationPackets = interpolationPackets;
+		this.bufferSize = bufferSize;
+		this.batchSize = batchSize;
+		this.spinNanos = spinNanos;
+		AtomicInteger ioThreadCount = new AtomicInteger();
+		this.ioPool = Executors.newFixedThreadPool(ioThreads, r -> new Thread(r, "engine-io-" + ioThreadCount.getAndIncrement()));
+		this.schedulers = new ChannelScheduler[schedulerThreads];
+		for (int i = 0; i < schedulerThreads; i++) {
+			schedulers[i] = new ChannelScheduler("engine-scheduler-" + i, tickNanos);
+			schedulers[i].thread.start();
+		}
+	}
+
+	/**
+	 * Starts streaming source to sink, once its buffer is filled.
+	 */
+	public Channel addChannel(String name, MTSSource source, MTSSink sink) {
+		Preconditions.checkNotNull(name);
+		Preconditions.checkNotNull(source);
+		Preconditions.checkNotNull(sink);
+		Preconditions.checkState(!closed, "engine is closed");
+		ChannelScheduler scheduler = schedulers[0];
+		for (ChannelScheduler candidate : schedulers) {
+			if (!candidate.stopped && (scheduler.stopped || candidate.channelCount.get() < scheduler.channelCount.get())) {
+				scheduler = candidate;
+			}
+		}
+		Preconditions.checkState(!scheduler.stopped, "all scheduler threads were interrupted");
+		Channel channel = new Channel(name, source, sink, scheduler);
+		scheduler.channelCount.incrementAndGet();
+		channels.add(channel);
+		log.info("Adding channel {}", name);
+		channel.reading.set(true);
+		channel.submitRead();
+		return channel;
+	}
+
+	/**
+	 * Stops streaming a channel. Its scheduler thread drops it, and releases its buffer, when it is next due, see
+	 * {@link Channel#isFinished()}. Sources and sinks are not closed.
+	 */
+	public void removeChannel(Channel channel) {
+		if (channels.contains(channel)) {
+			log.info("Removing channel {}", channel.name);
+			channel.removed = true;
+		}
+	}
+
+	/**
+	 * @return the channels being streamed
+	 */
+	public Collection<Channel> getChannels() {
+		return Collections.unmodifiableSet(channels);
+	}
+
+	/**
+	 * Stops streaming all channels, and the threads of the engine.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		for (ChannelScheduler scheduler : schedulers) {
+			scheduler.wakeUp();
+		}
+		for (ChannelScheduler scheduler : schedulers) {
+			scheduler.thread.join();
+		}
+		ioPool.shutdown();
+		ioPool.awaitTermination(1, TimeUnit.MINUTES);
+		for (Channel channel : channels) {
+			channel.removed = true;
+			channel.finish();
+		}
+	}
+
+	private class ChannelScheduler implements Runnable {
+		private final Thread thread;
+		private final TimerWheel<Channel> wheel;
+		private final Queue<Channel> added = new ConcurrentLinkedQueue<>();
+		private final List<Channel> expired = new ArrayList<>();
+		private final AtomicInteger channelCount = new AtomicInteger();
+		private volatile boolean wakeUp;
+		// Interrupted: its channels are removed, and it takes no new ones
+		private volatile boolean stopped;
+
+		private ChannelScheduler(String name, long tickNanos) {
+			this.thread = new Thread(this, name);
+			this.wheel = new TimerWheel<>(tickNanos, 4, channel -> channel.deadline);
+		}
+
+		private void add(Channel channel) {
+			added.offer(channel);
+			wakeUp();
+		}
+
+		private void wakeUp() {
+			wakeUp = true;
+			LockSupport.unpark(thread);
+		}
+
+		@Override
+		public void run() {
+			while (!closed && !stopped) {
+				wakeUp = false;
+				Channel channel;
+				while ((channel = added.poll()) != null) {
+					channel.deadline = System.nanoTime();
+					wheel.schedule(channel);
+				}
+
+				wheel.expire(System.nanoTime(), expired);
+				for (int i = 0; i < expired.size(); i++) {
+					channel = expired.get(i);
+					if (channel.stream()) {
+						wheel.schedule(channel);
+					}
+				}
+				expired.clear();
+
+				// Until the next deadline, or until a channel is added
+				long next = wheel.nextExpiry();
+				while (!closed && !wakeUp) {
+					long remaining = wheel.isEmpty() ? MAX_PARK_NANOS : next - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					if (remaining > spinNanos) {
+						LockSupport.parkNanos(Math.min(remaining - spinNanos, MAX_PARK_NANOS));
+					}
+					if (thread.isInterrupted()) {
+						// Parking would return at once from now on, stop rather than spin
+						log.warn("Scheduler thread {} interrupted, removing its channels", thread.getName());
+						stopped = true;
+						break;
+					}
+				}
+			}
+			if (stopped) {
+				for (Channel channel : channels) {
+					if (channel.scheduler == this) {
+						channel.removed = true;
+						channel.finish();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A source streamed to a sink by a {@link StreamingEngine}.
+	 */
+	public class Channel {
+		private final String name;
+		private final MTSSource source;
+		private final MTSSink sink;
+		private final ChannelScheduler scheduler;
+		// The I/O pool is the only producer, one read at a time
+		private final RingBuffer<MTSPacket> buffer;
+		private final AtomicBoolean reading = new AtomicBoolean();
+		private final PacketBatch readBatch;
+		private boolean started;
+		private volatile boolean endOfSourceReached;
+		private volatile boolean removed;
+		private volatile boolean finished;
+
+		// Scheduler thread state: the next packet, waiting for its deadline if it has one, and the packets before it
+		private final PacketScheduler packetScheduler;
+		private final PacketBatch sendBatch;
+		private MTSPacket nextPacket;
+		private long nextPacketDeadline;
+		// Position in the timer wheel
+		private long deadline;
+
+		private volatile long packetCount;
+		private volatile int minBufferOccupancy;
+		private volatile long lagNanos;
+		private volatile long maxLagNanos;
+
+		private Channel(String name, MTSSource source, MTSSink sink, ChannelScheduler scheduler) {
+			this.name = name;
+			this.source = source;
+			this.sink = sink;
+			this.scheduler = scheduler;
+			this.buffer = new RingBuffer<>(bufferSize);
+			this.readBatch = new PacketBatch(batchSize);
+			this.packetScheduler = new PacketScheduler(pacingMode, interpolationPackets);
+			this.sendBatch = new PacketBatch(batchSize);
+			this.minBufferOccupancy = buffer.capacity();
+		}
+
+		/**
+		 * Sends the packets that are due, on the scheduler thread.
+		 *
+		 * @return whether the channel goes back to the timer wheel, at its deadline
+		 */
+		private boolean stream() {
+			int batches = 0;
+			while (!removed) {
+				if (nextPacket == null) {
+					nextPacket = buffer.poll();
+					if (nextPacket == null) {
+						// Nothing more to group with pending packets
+						send();
+						if (!endOfSourceReached) {
+							flush();
+							// The source fell behind, try again on the next tick
+							requestRead();
+							deadline = System.nanoTime() + scheduler.wheel.getTickNanos();
+							return true;
+						}
+						nextPacket = buffer.poll();
+						if (nextPacket == null) {
+							finish();
+							return false;
+						}
+					}
+					int occupancy = buffer.size();
+					if (occupancy < minBufferOccupancy) {
+						minBufferOccupancy = occupancy;
+					}
+					nextPacketDeadline = packetScheduler.schedule(nextPacket);
+				}
+
+				if (nextPacketDeadline != PacketScheduler.NO_DEADLINE) {
+					long lag = System.nanoTime() - nextPacketDeadline;
+					if (lag < 0) {
+						// Packets preceding this one must not be delayed
+						send();
+						flush();
+						requestRead();
+						deadline = nextPacketDeadline;
+						return true;
+					}
+					recordLag(lag);
+				}
+
+				sendBatch.add(nextPacket);
+				nextPacket = null;
+				packetCount++;
+				if (sendBatch.isFull()) {
+					send();
+					if (++batches == MAX_BATCHES_PER_TURN) {
+						requestRead();
+						deadline = System.nanoTime();
+						return true;
+					}
+				}
+			}
+			finish();
+			return false;
+		}
+
+		private void send() {
+			if (sendBatch.isEmpty()) {
+				return;
+			}
+			try {
+				sink.send(sendBatch);
+			} catch (Exception e) {
+				log.error("Error sending packet to sink of channel " + name, e);
+			} finally {
+				// Give pooled buffers back, sinks retain the packets they keep
+				sendBatch.release();
+			}
+		}
+
+		private void flush() {
+			try {
+				// Nothing is sent until the channel is due again
+				sink.flush();
+			} catch (Exception e) {
+				log.error("Error flushing sink of channel " + name, e);
+			}
+		}
+
+		private void finish() {
+			if (finished) {
+				return;
+			}
+			if (removed) {
+				sendBatch.release();
+				if (nextPacket != null) {
+					nextPacket.release();
+					nextPacket = null;
+				}
+			} else {
+				send();
+				flush();
+				log.info("Channel {} ended, sent {} MPEG-TS packets", name, packetCount);
+			}
+			releaseBuffer();
+			finished = true;
+			channels.remove(this);
+			scheduler.channelCount.decrementAndGet();
+		}
+
+		private void releaseBuffer() {
+			MTSPacket packet;
+			while ((packet = buffer.poll()) != null) {
+				packet.release();
+			}
+		}
+
+		private boolean needsData() {
+			// Reads are batched: wait for the buffer to be half empty
+			return !removed && !endOfSourceReached && buffer.size() <= buffer.capacity() / 2;
+		}
+
+		private void requestRead() {
+			if (needsData() && reading.compareAndSet(false, true)) {
+				submitRead();
+			}
+		}
+
+		private void submitRead() {
+			try {
+				ioPool.execute(this::read);
+			} catch (RejectedExecutionException e) {
+				// The engine is closing
+				reading.set(false);
+			}
+		}
+
+		private void read() {
+			do {
+				fillBuffer();
+				reading.set(false);
+				// The scheduler may have asked for data before the flag was cleared
+			} while (needsData() && reading.compareAndSet(false, true));
+		}
+
+		private void fillBuffer() {
+			try {
+				while (!removed && !endOfSourceReached && buffer.capacity() - buffer.size() >= batchSize) {
+					if (source.nextPackets(readBatch) == 0) {
+						endOfSourceReached = true;
+						break;
+					}
+					for (int i = 0; i < readBatch.size(); i++) {
+						// Always room: nobody else adds packets
+						buffer.offer(readBatch.get(i));
+					}
+					readBatch.clear();
+				}
+			} catch (Exception e) {
+				log.error("Error reading from source of channel " + name, e);
+				// Packets read before the error are never offered
+				readBatch.release();
+				endOfSourceReached = true;
+			}
+			if (removed) {
+				// The scheduler may have released the buffer already
+				releaseBuffer();
+			}
+			if (!started) {
+				// Buffer filled, start streaming
+				started = true;
+				scheduler.add(this);
+			}
+		}
+
+		private void recordLag(long lag) {
+			// Exponential moving average, over about 16 deadlines
+			lagNanos += (lag - lagNanos) >> 4;
+			if (lag > maxLagNanos) {
+				maxLagNanos = lag;
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public MTSSource getSource() {
+			return source;
+		}
+
+		public MTSSink getSink() {
+			return sink;
+		}
+
+		/**
+		 * @return whether the channel reached the end of its source or was removed, and released its buffer
+		 */
+		public boolean isFinished() {
+			return finished;
+		}
+
+		public long getPacketCount() {
+			return packetCount;
+		}
+
+		/**
+		 * @return the number of packets read in advance, waiting to be streamed
+		 */
+		public int getBufferOccupancy() {
+			return buffer.size();
+		}
+
+		/**
+		 * @return the lowest number of packets seen waiting since streaming started: close to 0, the source barely keeps up
+		 */
+		public int getMinBufferOccupancy() {
+			return minBufferOccupancy;
+		}
+
+		/**
+		 * @return how late packets with a deadline left recently, on average, in nanoseconds
+		 */
+		public long getLagNanos() {
+			return lagNanos;
+		}
+
+		/**
+		 * @return how late a packet left at worst, in nanoseconds
+		 */
+		public long getMaxLagNanos() {
+			return maxLagNanos;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	public static StreamingEngineBuilder builder() {
+		return new StreamingEngineBuilder();
+	}
+
+	public static class StreamingEngineBuilder {
+		private int ioThreads = 4;
+		private int schedulerThreads = 2;
+		private long tickNanos = 100_000;
+		private long spinNanos = 0;
+		private Streamer.PacingMode pacingMode = Streamer.PacingMode.PCR;
+		private int interpolationPackets = 7;
+		private int bufferSize = 1000;
+		private int batchSize = 64;
+
+		private StreamingEngineBuilder() {
+		}
+
+		/**
+		 * Number of threads reading sources, 4 by default.
+		 */
+		public StreamingEngineBuilder setIoThreads(int ioThreads) {
+			this.ioThreads = ioThreads;
+			return this;
+		}
+
+		/**
+		 * Number of threads pacing channels, 2 by default. Channels go to the thread with the fewest.
+		 */
+		public StreamingEngineBuilder setSchedulerThreads(int schedulerThreads) {
+			this.schedulerThreads = schedulerThreads;
+			return this;
+		}
+
+		/**
+		 * Resolution of the timer wheels, 100 microseconds by default: packets leave up to a tick late.
+		 */
+		public StreamingEngineBuilder setTickNanos(long tickNanos) {
+			this.tickNanos = tickNanos;
+			return this;
+		}
+
+		/**
+		 * How long before a deadline scheduler threads stop parking and spin, 0 by default.
+		 * Higher values make up for the latency of parking, and burn more CPU.
+		 */
+		public StreamingEngineBuilder setSpinNanos(long spinNanos) {
+			this.spinNanos = spinNanos;
+			return this;
+		}
+
+		/**
+		 * See {@link Streamer.StreamerBuilder#setPacingMode(Streamer.PacingMode)}.
+		 */
+		public StreamingEngineBuilder setPacingMode(Streamer.PacingMode pacingMode) {
+			this.pacingMode = pacingMode;
+			return this;
+		}
+
+		public StreamingEngineBuilder setInterpolationPackets(int interpolationPackets) {
+			this.interpolationPackets = interpolationPackets;
+			return this;
+		}
+
+		/**
+		 * Number of packets read in advance per channel, 1000 by default.
+		 */
+		public StreamingEngineBuilder setBufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		public StreamingEngineBuilder setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public StreamingEngine build() {
+			Preconditions.checkNotNull(pacingMode);
+			Preconditions.checkArgument(ioThreads > 0, "ioThreads must be positive");
+			Preconditions.checkArgument(schedulerThreads > 0, "schedulerThreads must be positive");
+			Preconditions.checkArgument(tickNanos > 0, "tickNanos must be positive");
+			Preconditions.checkArgument(spinNanos >= 0, "spinNanos cannot be negative");
+			Preconditions.checkArgument(interpolationPackets > 0, "interpolationPackets must be positive");
+			Preconditions.checkArgument(batchSize > 0 && batchSize <= bufferSize, "batchSize must be between 1 and bufferSize");
+			return new StreamingEngine(ioThreads, schedulerThreads, tickNanos, spinNanos, pacingMode, interpolationPackets, bufferSize, batchSize);
+		}
+	}
+}
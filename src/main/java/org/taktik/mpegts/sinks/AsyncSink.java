@@ -0,0 +1,315 @@
+package org.taktik.mpegts.sinks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.ioutils.RingBuffer;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+
+/**
+ * Decouples a sink from the streaming thread: packets are queued in a bounded lock-free {@link RingBuffer}
+ * and sent by a dedicated thread, so that a slow send (GC pause, disk flush, full socket buffer...) does not delay
+ * the next packets nor corrupt the pacing of the {@link org.taktik.mpegts.Streamer}.
+ * <br>
+ * When the queue is full, {@link #send(MTSPacket)} either waits for room, drops the oldest queued packet, or drops
+ * null packets first, depending on the {@link BackpressurePolicy}. Packets are shared, not copied, the same way as in
+ * {@link FanOutSink}. Queue depth and the time packets spend queued are measured.
+ */
+public class AsyncSink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
+
+	private static final int NULL_PID = 0x1fff;
+
+	public enum BackpressurePolicy {
+		/** Waits for room in the queue, delaying the streaming thread */
+		BLOCK,
+		/** Drops the oldest queued packet to make room */
+		DROP_OLDEST,
+		/** Drops incoming null packets once the queue is 3/4 full, then the oldest queued packets when it is full */
+		DROP_NULL_PACKETS_FIRST
+	}
+
+	private final MTSSink sink;
+	private final BackpressurePolicy policy;
+	private final int batchSize;
+	private final int nullDropThreshold;
+
+	// Entries go from the producer to the sender thread through the queue, and come back through the free ring
+	private final RingBuffer<Entry> queue;
+	private final RingBuffer<Entry> free;
+	// An entry dropped by the producer, which cannot offer it to the free ring
+	private Entry spare;
+	private final Thread thread;
+	private volatile boolean senderWaiting;
+	private volatile boolean stopping;
+	private volatile boolean stopped;
+
+	private volatile long sentCount;
+	private volatile long droppedCount;
+	private volatile long errorCount;
+	private volatile int maxQueueSize;
+	private volatile long latencyNanos;
+	private volatile long maxLatencyNanos;
+
+	private AsyncSink(MTSSink sink, int queueSize, int batchSize, BackpressurePolicy policy) {
+		this.sink = sink;
+		this.policy = policy;
+		this.batchSize = batchSize;
+		this.queue = new RingBuffer<>(queueSize);
+		this.free = new RingBuffer<>(queue.capacity() + batchSize);
+		this.nullDropThreshold = queue.capacity() * 3 / 4;
+		for (int i = 0; i < free.capacity(); i++) {
+			free.offer(new Entry());
+		}
+		this.thread = new Thread(this::run, "async-sink");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	@Override
+	public synchronized void send(MTSPacket packet) {
+		enqueue(packet, System.nanoTime());
+		signal();
+	}
+
+	@Override
+	public synchronized void send(PacketBatch batch) {
+		long now = System.nanoTime();
+		for (int i = 0; i < batch.size(); i++) {
+			enqueue(batch.get(i), now);
+		}
+		signal();
+	}
+
+	private void enqueue(MTSPacket packet, long now) {
+		if (stopping) {
+			return;
+		}
+		if (policy == BackpressurePolicy.DROP_NULL_PACKETS_FIRST && packet.getPid() == NULL_PID && queue.size() >= nullDropThreshold) {
+			droppedCount++;
+			return;
+		}
+		Entry entry = spare != null ? spare : free.poll();
+		spare = null;
+		if (entry == null) {
+			entry = new Entry();
+		}
+		// Encodes pending changes now, rather than concurrently in the sender thread
+		packet.getBuffer();
+		entry.packet = packet.retain();
+		entry.enqueueNanos = now;
+		while (!queue.offer(entry)) {
+			if (policy == BackpressurePolicy.BLOCK) {
+				signal();
+				LockSupport.parkNanos(50_000);
+				if (stopped) {
+					entry.packet.release();
+					return;
+				}
+			} else {
+				Entry oldest = queue.poll();
+				if (oldest != null) {
+					oldest.packet.release();
+					oldest.packet = null;
+					droppedCount++;
+					spare = oldest;
+				}
+			}
+		}
+		int size = queue.size();
+		if (size > maxQueueSize) {
+			maxQueueSize = size;
+		}
+	}
+
+	private void signal() {
+		if (senderWaiting) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private void run() {
+		PacketBatch batch = new PacketBatch(batchSize);
+		Entry[] entries = new Entry[batchSize];
+		while (!stopped) {
+			int count = 0;
+			Entry entry;
+			while (count < batchSize && (entry = queue.poll()) != null) {
+				entries[count++] = entry;
+			}
+			if (count == 0) {
+				if (stopping) {
+					break;
+				}
+				senderWaiting = true;
+				// Checks again, a packet may have been queued before the flag was visible
+				if (queue.isEmpty()) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				}
+				senderWaiting = false;
+				continue;
+			}
+			long now = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				batch.add(entries[i].packet);
+				recordLatency(now - entries[i].enqueueNanos);
+				entries[i].packet = null;
+				free.offer(entries[i]);
+				entries[i] = null;
+			}
+			try {
+				sink.send(batch);
+				sentCount += count;
+				if (queue.isEmpty()) {
+					// About to wait for more packets
+					sink.flush();
+				}
+			} catch (Exception e) {
+				errorCount++;
+				log.error("Error sending packets to async sink", e);
+			} finally {
+				batch.release();
+			}
+		}
+	}
+
+	private void recordLatency(long latency) {
+		// Exponential moving average, over about 1024 packets
+		latencyNanos += (latency - latencyNanos) >> 10;
+		if (latency > maxLatencyNanos) {
+			maxLatencyNanos = latency;
+		}
+	}
+
+	/**
+	 * Stops the sender thread, waiting for it to send the queued packets for at most timeout milliseconds.
+	 * The downstream sink is not closed.
+	 */
+	public void close(long timeout) throws InterruptedException {
+		stopping = true;
+		LockSupport.unpark(thread);
+		thread.join(Math.max(1, timeout));
+		stopped = true;
+		thread.join();
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			entry.packet.release();
+			entry.packet = null;
+		}
+	}
+
+	public void close() throws InterruptedException {
+		close(1000);
+	}
+
+	public MTSSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * @return the number of packets waiting to be sent
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the highest number of packets seen waiting in the queue
+	 */
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * @return the number of packets dropped by the backpressure policy
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return the number of failed sends to the sink
+	 */
+	public long getErrorCount() {
+		return errorCount;
+	}
+
+	/**
+	 * @return the moving average of the time packets spend queued, in nanoseconds
+	 */
+	public long getAverageLatencyNanos() {
+		return latencyNanos;
+	}
+
+	/**
+	 * @return the longest time a packet spent queued, in nanoseconds
+	 */
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	private static class Entry {
+		private MTSPacket packet;
+		private long enqueueNanos;
+	}
+
+	public static AsyncSinkBuilder builder() {
+		return new AsyncSinkBuilder();
+	}
+
+	public static class AsyncSinkBuilder {
+		private MTSSink sink;
+		private int queueSize = 4096;
+		private int batchSize = 64;
+		private BackpressurePolicy policy = BackpressurePolicy.BLOCK;
+
+		private AsyncSinkBuilder() {
+		}
+
+		public AsyncSinkBuilder setSink(MTSSink sink) {
+			this.sink = sink;
+			return this;
+		}
+
+		/**
+		 * Number of packets the sink can fall behind before the backpressure policy applies, 4096 by default.
+		 * Rounded up to a power of two.
+		 */
+		public AsyncSinkBuilder setQueueSize(int queueSize) {
+			this.queueSize = queueSize;
+			return this;
+		}
+
+		/**
+		 * Maximum number of packets handed to the sink in one call, 64 by default.
+		 */
+		public AsyncSinkBuilder setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * What to do when the queue is full, {@link BackpressurePolicy#BLOCK} by default.
+		 */
+		public AsyncSinkBuilder setBackpressurePolicy(BackpressurePolicy policy) {
+			this.policy = policy;
+			return this;
+		}
+
+		public AsyncSink build() {
+			Preconditions.checkNotNull(sink, "sink cannot be null");
+			Preconditions.checkArgument(queueSize > 0, "queueSize must be positive");
+			Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+			Preconditions.checkNotNull(policy);
+			return new AsyncSink(sink, queueSize, batchSize, policy);
+		}
+	}
+}
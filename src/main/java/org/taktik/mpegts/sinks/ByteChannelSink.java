@@ -1,20 +1,143 @@
 package org.taktik.mpegts.sinks;
 
-import java.nio.channels.ByteChannel;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
 
+/**
+ * Writes packets to a channel, through a staging buffer of flushSize bytes.
+ * <br>
+ * By default the buffer holds a single packet, and each packet is written as soon as it is sent. With a larger flushSize,
+ * e.g. for file recording, packets are copied into the staging buffer, which is written in one go when full, when
+ * {@link #flush()} is called (the streamer does before each wait), or when its oldest packet has been waiting for
+ * flushInterval milliseconds. Partial writes are retried until the whole buffer is written, waiting for the channel to
+ * be writable when it is non-blocking.
+ * <br>
+ * Write errors are thrown to the caller, except for writes made by the flush timer: those are logged, and the staged
+ * packets are lost.
+ */
 public class ByteChannelSink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
 
-	private ByteChannel byteChannel;
+	private final WritableByteChannel byteChannel;
+	private final ByteBuffer staging;
+	private long firstPacketTime;
 
-	private ByteChannelSink(ByteChannel byteChannel) {
+	private final long flushIntervalNanos;
+	private final ScheduledExecutorService flushScheduler;
+	private Selector selector;
+
+	private ByteChannelSink(WritableByteChannel byteChannel, int flushSize, long flushInterval) {
 		this.byteChannel = byteChannel;
+		this.staging = ByteBuffer.allocateDirect(flushSize);
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+		if (flushSize > Constants.MPEGTS_PACKET_SIZE && flushInterval > 0) {
+			flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "channel-flush");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long period = Math.max(1, flushInterval / 2);
+			flushScheduler.scheduleAtFixedRate(this::flushIfExpired, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			flushScheduler = null;
+		}
+	}
+
+	@Override
+	public synchronized void send(MTSPacket packet) throws IOException {
+		add(packet);
+	}
+
+	@Override
+	public synchronized void send(PacketBatch batch) throws IOException {
+		for (int i = 0; i < batch.size(); i++) {
+			add(batch.get(i));
+		}
+	}
+
+	private void add(MTSPacket packet) throws IOException {
+		if (staging.position() == 0) {
+			firstPacketTime = System.nanoTime();
+		}
+		packet.copyTo(staging);
+		if (staging.remaining() < Constants.MPEGTS_PACKET_SIZE) {
+			flush();
+		}
 	}
 
+	/**
+	 * Writes the staged packets, if any.
+	 */
 	@Override
-	public void send(MTSPacket packet) throws Exception {
-		byteChannel.write(packet.getBuffer());
+	public synchronized void flush() throws IOException {
+		if (staging.position() == 0) {
+			return;
+		}
+		staging.flip();
+		try {
+			while (staging.hasRemaining()) {
+				if (byteChannel.write(staging) == 0) {
+					awaitWritable();
+				}
+			}
+		} finally {
+			staging.clear();
+		}
+	}
+
+	private void awaitWritable() throws IOException {
+		if (byteChannel instanceof SelectableChannel && !((SelectableChannel) byteChannel).isBlocking()) {
+			if (selector == null) {
+				selector = Selector.open();
+				((SelectableChannel) byteChannel).register(selector, SelectionKey.OP_WRITE);
+			}
+			selector.selectedKeys().clear();
+			selector.select(100);
+		} else {
+			Thread.yield();
+		}
+	}
+
+	private synchronized void flushIfExpired() {
+		if (staging.position() > 0 && System.nanoTime() - firstPacketTime >= flushIntervalNanos) {
+			try {
+				flush();
+			} catch (IOException e) {
+				// Nobody to throw to, the staged packets are dropped
+				log.warn("Error flushing packets", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the staged packets, then closes the channel.
+	 */
+	public synchronized void close() throws IOException {
+		if (flushScheduler != null) {
+			flushScheduler.shutdownNow();
+		}
+		try {
+			flush();
+		} finally {
+			if (selector != null) {
+				selector.close();
+			}
+			byteChannel.close();
+		}
 	}
 
 	public static ByteChannelSinkBuilder builder() {
@@ -22,17 +145,42 @@ public class ByteChannelSink implements MTSSink {
 	}
 
 	public static class ByteChannelSinkBuilder {
-		private ByteChannel byteChannel;
+		private WritableByteChannel byteChannel;
+		private int flushSize = Constants.MPEGTS_PACKET_SIZE;
+		private long flushInterval = 50;
 
 		private ByteChannelSinkBuilder(){}
 
 		public ByteChannelSink build() {
-			return new ByteChannelSink(byteChannel);
+			Preconditions.checkNotNull(byteChannel, "byteChannel cannot be null");
+			Preconditions.checkArgument(flushSize >= Constants.MPEGTS_PACKET_SIZE, "flushSize must be at least one packet");
+			Preconditions.checkArgument(flushInterval >= 0, "flushInterval cannot be negative");
+			// Whole packets only
+			int size = flushSize / Constants.MPEGTS_PACKET_SIZE * Constants.MPEGTS_PACKET_SIZE;
+			return new ByteChannelSink(byteChannel, size, flushInterval);
 		}
 
-		public ByteChannelSinkBuilder setByteChannel(ByteChannel byteChannel) {
+		public ByteChannelSinkBuilder setByteChannel(WritableByteChannel byteChannel) {
 			this.byteChannel = byteChannel;
 			return this;
 		}
+
+		/**
+		 * Size of the staging buffer, rounded down to whole packets. Defaults to one packet, every packet is written on
+		 * its own. Recording to a file is more efficient with a larger buffer, e.g. 1000 packets.
+		 */
+		public ByteChannelSinkBuilder setFlushSize(int flushSize) {
+			this.flushSize = flushSize;
+			return this;
+		}
+
+		/**
+		 * Maximum time in milliseconds a packet stays in the staging buffer, 50 by default. 0 disables the timeout.
+		 * Only applies when flushSize is larger than one packet.
+		 */
+		public ByteChannelSinkBuilder setFlushInterval(long flushInterval) {
+			this.flushInterval = flushInterval;
+			return this;
+		}
 	}
 }
@@ -0,0 +1,241 @@
+package org.taktik.mpegts.sinks;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+import org.taktik.mpegts.RTPHeader;
+
+/**
+ * Sends packets over UDP through a connected {@link DatagramChannel}, packing packetsPerDatagram packets (7 by default)
+ * into a pre-allocated direct buffer.
+ * <br>
+ * Packets are held until a datagram is full, or until {@link #flush()} is called (the streamer does before each wait).
+ * A datagram that fails to be sent is dropped.
+ * <br>
+ * In non-blocking mode, a send that would block (EAGAIN, the socket send buffer is full) is counted, and retried once the
+ * channel is writable again: a growing {@link #getWouldBlockCount()} means the send buffer is too small for the bitrate.
+ * <br>
+ * With RTP enabled, each datagram starts with an RTP header (RFC 2250), written in place in the direct buffer.
+ */
+public class DatagramChannelSink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final ByteBuffer datagram;
+	private final RTPPacketizer rtpPacketizer;
+	private final int headerSize;
+
+	// Written under the lock, read without it
+	private volatile long datagramCount;
+	private volatile long wouldBlockCount;
+	private volatile long sendNanos;
+	private volatile long maxSendNanos;
+
+	private DatagramChannelSink(DatagramChannel channel, int packetsPerDatagram, boolean nonBlocking, boolean rtp) throws IOException {
+		this.channel = channel;
+		this.rtpPacketizer = rtp ? new RTPPacketizer() : null;
+		this.headerSize = rtp ? RTPHeader.HEADER_SIZE : 0;
+		this.datagram = ByteBuffer.allocateDirect(headerSize + packetsPerDatagram * Constants.MPEGTS_PACKET_SIZE);
+		this.datagram.position(headerSize);
+		if (nonBlocking) {
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_WRITE);
+		} else {
+			selector = null;
+		}
+	}
+
+	@Override
+	public synchronized void send(MTSPacket packet) throws IOException {
+		add(packet);
+	}
+
+	@Override
+	public synchronized void send(PacketBatch batch) throws IOException {
+		for (int i = 0; i < batch.size(); i++) {
+			add(batch.get(i));
+		}
+	}
+
+	private void add(MTSPacket packet) throws IOException {
+		if (rtpPacketizer != null) {
+			rtpPacketizer.observe(packet);
+		}
+		packet.copyTo(datagram);
+		if (!datagram.hasRemaining()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends the packets waiting for a datagram to be filled, if any.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (datagram.position() == headerSize) {
+			return;
+		}
+		if (rtpPacketizer != null) {
+			rtpPacketizer.writeHeader(datagram, 0);
+		}
+		datagram.flip();
+		long start = System.nanoTime();
+		try {
+			while (channel.write(datagram) == 0) {
+				// Only happens in non-blocking mode
+				wouldBlockCount++;
+				selector.selectedKeys().clear();
+				selector.select(100);
+			}
+		} finally {
+			// Ready for the next datagram, even if this one failed (e.g. PortUnreachableException)
+			datagram.clear();
+			datagram.position(headerSize);
+		}
+		long duration = System.nanoTime() - start;
+		datagramCount++;
+		sendNanos += duration;
+		if (duration > maxSendNanos) {
+			maxSendNanos = duration;
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			if (selector != null) {
+				selector.close();
+			}
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return the number of datagrams sent
+	 */
+	public long getDatagramCount() {
+		return datagramCount;
+	}
+
+	/**
+	 * @return the number of sends that would have blocked because the socket send buffer was full (non-blocking mode only)
+	 */
+	public long getWouldBlockCount() {
+		return wouldBlockCount;
+	}
+
+	/**
+	 * @return the average time spent sending a datagram, retries included, in nanoseconds
+	 */
+	public long getAverageSendNanos() {
+		long count = datagramCount;
+		return count > 0 ? sendNanos / count : 0;
+	}
+
+	/**
+	 * @return the longest time spent sending a datagram, retries included, in nanoseconds
+	 */
+	public long getMaxSendNanos() {
+		return maxSendNanos;
+	}
+
+	public static DatagramChannelSinkBuilder builder() {
+		return new DatagramChannelSinkBuilder();
+	}
+
+	public static class DatagramChannelSinkBuilder {
+		private String address;
+		private int port;
+		private int ttl = 1;
+		private int sendBufferSize = 0;
+		private int packetsPerDatagram = 7;
+		private boolean nonBlocking = false;
+		private boolean rtp = false;
+
+		private DatagramChannelSinkBuilder() {
+		}
+
+		public DatagramChannelSinkBuilder setAddress(String address) {
+			this.address = address;
+			return this;
+		}
+
+		public DatagramChannelSinkBuilder setPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Multicast time to live, 1 by default.
+		 */
+		public DatagramChannelSinkBuilder setTtl(int ttl) {
+			this.ttl = ttl;
+			return this;
+		}
+
+		/**
+		 * Socket send buffer size (SO_SNDBUF). The system default is used if not set.
+		 */
+		public DatagramChannelSinkBuilder setSendBufferSize(int sendBufferSize) {
+			this.sendBufferSize = sendBufferSize;
+			return this;
+		}
+
+		public DatagramChannelSinkBuilder setPacketsPerDatagram(int packetsPerDatagram) {
+			this.packetsPerDatagram = packetsPerDatagram;
+			return this;
+		}
+
+		public DatagramChannelSinkBuilder setNonBlocking(boolean nonBlocking) {
+			this.nonBlocking = nonBlocking;
+			return this;
+		}
+
+		/**
+		 * Whether to encapsulate packets in RTP, false by default.
+		 */
+		public DatagramChannelSinkBuilder setRtp(boolean rtp) {
+			this.rtp = rtp;
+			return this;
+		}
+
+		public DatagramChannelSink build() throws IOException {
+			Preconditions.checkNotNull(address, "address cannot be null");
+			Preconditions.checkArgument(port > 0 && port < 65536, "Invalid port");
+			Preconditions.checkArgument(packetsPerDatagram > 0 && packetsPerDatagram * Constants.MPEGTS_PACKET_SIZE <= 65507, "Invalid packetsPerDatagram");
+			InetSocketAddress inetSocketAddress = new InetSocketAddress(address, port);
+			DatagramChannel channel = DatagramChannel.open(inetSocketAddress.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+			try {
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+				if (sendBufferSize > 0) {
+					channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+					if (channel.getOption(StandardSocketOptions.SO_SNDBUF) < sendBufferSize) {
+						log.warn("Send buffer size capped to {} bytes", channel.getOption(StandardSocketOptions.SO_SNDBUF));
+					}
+				}
+				// Connected once, so that sends do not have to check the address
+				channel.connect(inetSocketAddress);
+				return new DatagramChannelSink(channel, packetsPerDatagram, nonBlocking, rtp);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package org.taktik.mpegts.sinks;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+
+/**
+ * Sends the same packets to several sinks, each one fed by its own bounded queue and thread.
+ * <br>
+ * Packets are shared, not copied: each consumer retains a packet when it is queued and releases it once sent,
+ * so downstream sinks must neither modify packets nor move the position of their buffers (see {@link MTSPacket#copyTo(java.nio.ByteBuffer)}).
+ * {@link #send(MTSPacket)} never blocks: when a consumer queue is full,
+ * the packet is dropped for that consumer only, or the consumer is disconnected, depending on the {@link OverflowPolicy}.
+ * A slow or stalled sink therefore never delays the others, nor the streaming thread.
+ */
+public class FanOutSink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
+
+	public enum OverflowPolicy {
+		/** Drops the packets that do not fit in the queue of a consumer */
+		DROP,
+		/** Stops sending to a consumer as soon as its queue overflows */
+		DISCONNECT
+	}
+
+	private final List<Consumer> consumers;
+	private final OverflowPolicy overflowPolicy;
+
+	private FanOutSink(List<MTSSink> sinks, int queueSize, int batchSize, OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		List<Consumer> list = Lists.newArrayList();
+		for (int i = 0; i < sinks.size(); i++) {
+			list.add(new Consumer(i, sinks.get(i), queueSize, batchSize));
+		}
+		this.consumers = ImmutableList.copyOf(list);
+		for (Consumer consumer : consumers) {
+			consumer.thread.start();
+		}
+	}
+
+	@Override
+	public void send(MTSPacket packet) {
+		// Encodes pending changes now, rather than concurrently in the consumer threads
+		packet.getBuffer();
+		for (int i = 0; i < consumers.size(); i++) {
+			consumers.get(i).offer(packet);
+		}
+	}
+
+	/**
+	 * @return the consumers, in the order their sinks were added
+	 */
+	public List<Consumer> getConsumers() {
+		return consumers;
+	}
+
+	/**
+	 * Stops all consumers, waiting for them to send their queued packets for at most timeout milliseconds.
+	 * Downstream sinks are not closed.
+	 */
+	public void close(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		for (Consumer consumer : consumers) {
+			consumer.stopping = true;
+		}
+		for (Consumer consumer : consumers) {
+			consumer.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			consumer.stop();
+			consumer.thread.join();
+		}
+	}
+
+	public void close() throws InterruptedException {
+		close(1000);
+	}
+
+	/**
+	 * A downstream sink, with its queue, thread and metrics.
+	 */
+	public class Consumer {
+		private final MTSSink sink;
+		private final ArrayBlockingQueue<MTSPacket> queue;
+		private final int batchSize;
+		private final Thread thread;
+
+		private volatile boolean stopping;
+		private volatile boolean stopped;
+		private volatile boolean disconnected;
+
+		private volatile long sentCount;
+		private volatile long droppedCount;
+		private volatile long errorCount;
+		private volatile int maxQueueSize;
+
+		private Consumer(int index, MTSSink sink, int queueSize, int batchSize) {
+			this.sink = sink;
+			this.queue = new ArrayBlockingQueue<>(queueSize);
+			this.batchSize = batchSize;
+			this.thread = new Thread(this::run, "fanout-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		private void offer(MTSPacket packet) {
+			if (disconnected || stopped) {
+				return;
+			}
+			packet.retain();
+			if (queue.offer(packet)) {
+				if (stopped) {
+					// Stopped while queueing: nobody else may drain the queue again
+					drain();
+					return;
+				}
+				int size = queue.size();
+				if (size > maxQueueSize) {
+					maxQueueSize = size;
+				}
+				return;
+			}
+			packet.release();
+			droppedCount++;
+			if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+				log.warn("Consumer {} cannot keep up, disconnecting it", thread.getName());
+				disconnect();
+			}
+		}
+
+		private void disconnect() {
+			disconnected = true;
+			stop();
+		}
+
+		private void stop() {
+			// Not interrupted: a sink writing to an interruptible channel would get it closed. The thread sees the
+			// flag within the poll timeout, or once its current send returns.
+			stopped = true;
+			drain();
+		}
+
+		private void drain() {
+			// The consumer thread may still be draining, each packet is released by whoever polls it
+			MTSPacket packet;
+			while ((packet = queue.poll()) != null) {
+				packet.release();
+			}
+		}
+
+		private void run() {
+			PacketBatch batch = new PacketBatch(batchSize);
+			while (!stopped) {
+				MTSPacket packet;
+				try {
+					packet = stopping ? queue.poll() : queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (packet == null) {
+					if (stopping) {
+						break;
+					}
+					continue;
+				}
+				batch.add(packet);
+				while (!batch.isFull() && (packet = queue.poll()) != null) {
+					batch.add(packet);
+				}
+				try {
+					sink.send(batch);
+					sentCount += batch.size();
+					if (queue.isEmpty()) {
+						// About to wait for more packets
+						sink.flush();
+					}
+				} catch (Exception e) {
+					errorCount++;
+					log.error("Error sending packets to consumer " + thread.getName(), e);
+				} finally {
+					batch.release();
+				}
+			}
+		}
+
+		public MTSSink getSink() {
+			return sink;
+		}
+
+		/**
+		 * @return the number of packets waiting to be sent, i.e. how late this consumer is
+		 */
+		public int getQueueSize() {
+			return queue.size();
+		}
+
+		/**
+		 * @return the highest number of packets seen waiting in the queue
+		 */
+		public int getMaxQueueSize() {
+			return maxQueueSize;
+		}
+
+		public long getSentCount() {
+			return sentCount;
+		}
+
+		/**
+		 * @return the number of packets dropped because the queue was full
+		 */
+		public long getDroppedCount() {
+			return droppedCount;
+		}
+
+		/**
+		 * @return the number of failed sends to the sink
+		 */
+		public long getErrorCount() {
+			return errorCount;
+		}
+
+		public boolean isDisconnected() {
+			return disconnected;
+		}
+	}
+
+	public static FanOutSinkBuilder builder() {
+		return new FanOutSinkBuilder();
+	}
+
+	public static class FanOutSinkBuilder {
+		private final List<MTSSink> sinks = Lists.newArrayList();
+		private int queueSize = 4096;
+		private int batchSize = 64;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+		private FanOutSinkBuilder() {
+		}
+
+		public FanOutSinkBuilder addSink(MTSSink sink) {
+			sinks.add(Preconditions.checkNotNull(sink));
+			return this;
+		}
+
+		public FanOutSinkBuilder addSinks(MTSSink... sinks) {
+			for (MTSSink sink : sinks) {
+				addSink(sink);
+			}
+			return this;
+		}
+
+		/**
+		 * Number of packets each consumer can fall behind before the overflow policy applies, 4096 by default.
+		 */
+		public FanOutSinkBuilder setQueueSize(int queueSize) {
+			this.queueSize = queueSize;
+			return this;
+		}
+
+		/**
+		 * Maximum number of packets handed to a downstream sink in one call, 64 by default.
+		 */
+		public FanOutSinkBuilder setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public FanOutSinkBuilder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+
+		public FanOutSink build() {
+			Preconditions.checkArgument(!sinks.isEmpty(), "At least one sink is needed");
+			Preconditions.checkArgument(queueSize > 0, "queueSize must be positive");
+			Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+			Preconditions.checkNotNull(overflowPolicy);
+			return new FanOutSink(sinks, queueSize, batchSize, overflowPolicy);
+		}
+	}
+}
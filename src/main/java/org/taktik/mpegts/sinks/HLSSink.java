@@ -0,0 +1,378 @@
+package org.taktik.mpegts.sinks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PATSection;
+import org.taktik.mpegts.PMTSection;
+import org.taktik.mpegts.PSITracker;
+
+/**
+ * Cuts the stream into HLS segments, written to a directory along with a sliding window m3u8 playlist.
+ * <br>
+ * A segment starts at a random access point (random access indicator and payload unit start) of the first video stream
+ * of the PMT, or of its first stream without video, once the current segment lasts at least the target duration,
+ * measured on the PCR PID, which may carry no payload. Tables are followed by a {@link PSITracker}, which gives the PCR
+ * PID of the first program, and the current PAT and PMT packets are written at the start of each segment, so that each
+ * one can be decoded on its own. Nothing is written before the PMT is known. Packets are written through a staging
+ * buffer of bufferSize bytes, so memory does not depend on the segment duration nor on the bitrate.
+ * <br>
+ * The playlist is rewritten to a temporary file then atomically renamed, players never see a partial playlist. Its target
+ * duration is the configured one rounded up, and only grows if a segment turns out longer, as players expect it constant.
+ * Segments leaving the playlist are deleted one segment later, giving players still downloading them some time.
+ * PAT and PMT sections are expected to fit in a single packet.
+ */
+public class HLSSink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
+
+	private static final long PCR_CLOCK = 27_000_000L;
+	private static final long PCR_WRAP = (1L << 33) * 300;
+	// PCR gaps larger than this are discontinuities, not elapsed time
+	private static final long MAX_PCR_GAP = PCR_CLOCK;
+
+	private final Path directory;
+	private final String segmentPrefix;
+	private final Path playlist;
+	private final Path playlistTemp;
+	private final long targetDuration;
+	private final int playlistSize;
+	private final ByteBuffer staging;
+	// Value of EXT-X-TARGETDURATION in seconds, never lowered
+	private long playlistTargetDuration;
+
+	private final PSITracker psiTracker = new PSITracker();
+	// Packet being given to the tracker, copied when it brings a new table
+	private MTSPacket tablePacket;
+	// Current PAT and PMT packets, re-inserted at each segment start
+	private byte[] patPacket;
+	private final Map<Integer, byte[]> pmtPackets = Maps.newTreeMap();
+	private int pcrPid = -1;
+	// PID whose random access points start segments
+	private int cutPid = -1;
+
+	private long lastPcr = -1;
+	private long segmentPcrTicks;
+
+	private FileChannel segmentChannel;
+	private long sequence;
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private boolean closed;
+
+	private HLSSink(File directory, String segmentPrefix, String playlistName, long targetDuration, int playlistSize, int bufferSize) {
+		this.directory = directory.toPath();
+		this.segmentPrefix = segmentPrefix;
+		this.playlist = this.directory.resolve(playlistName);
+		this.playlistTemp = this.directory.resolve(playlistName + ".tmp");
+		this.targetDuration = targetDuration * PCR_CLOCK / 1000;
+		this.playlistTargetDuration = Math.max(1, (targetDuration + 999) / 1000);
+		this.playlistSize = playlistSize;
+		this.staging = ByteBuffer.allocateDirect(bufferSize);
+		psiTracker.addListener(new PSITracker.Listener() {
+			@Override
+			public void patChanged(PATSection pat) {
+				patPacket = copyTablePacket(patPacket);
+				// Programs may have left
+				pmtPackets.keySet().removeIf(pid -> (psiTracker.getRole(pid) & PSITracker.ROLE_PMT) == 0);
+			}
+
+			@Override
+			public void pmtChanged(int pid, PMTSection pmt) {
+				if (pmt == null) {
+					pmtPackets.remove(pid);
+				} else {
+					pmtPackets.put(pid, copyTablePacket(pmtPackets.get(pid)));
+				}
+				updatePids();
+			}
+		});
+	}
+
+	@Override
+	public synchronized void send(MTSPacket packet) throws IOException {
+		Preconditions.checkState(!closed, "Sink is closed");
+		int pid = packet.getPid();
+		tablePacket = packet;
+		int role;
+		try {
+			role = psiTracker.update(packet);
+		} finally {
+			tablePacket = null;
+		}
+		if (packet.hasPcr() && (role & PSITracker.ROLE_PCR) != 0) {
+			updatePcr(packet.getPcrValue(), packet.isDiscontinuityIndicator());
+		}
+		if (pid == cutPid && packet.isPayloadUnitStartIndicator() && packet.isRandomAccessIndicator()
+				&& (segmentChannel == null || segmentPcrTicks >= targetDuration)) {
+			startSegment();
+		}
+		if (segmentChannel != null) {
+			write(packet);
+		}
+	}
+
+	private byte[] copyTablePacket(byte[] target) {
+		if (target == null) {
+			target = new byte[Constants.MPEGTS_PACKET_SIZE];
+		}
+		tablePacket.copyTo(target, 0);
+		return target;
+	}
+
+	private void updatePids() {
+		int newPcrPid = psiTracker.getPcrPid();
+		if (newPcrPid != pcrPid) {
+			log.info("Timing segments on PCR PID {}", newPcrPid);
+			pcrPid = newPcrPid;
+			lastPcr = -1;
+		}
+		// Streams of the first program, the one of the PCR PID
+		Iterator<PMTSection> pmts = psiTracker.getPmts().values().iterator();
+		int newCutPid = pmts.hasNext() ? cutPid(pmts.next()) : -1;
+		if (newCutPid != cutPid) {
+			log.info("Segmenting on PID {}", newCutPid);
+			cutPid = newCutPid;
+		}
+	}
+
+	private static int cutPid(PMTSection pmt) {
+		PMTSection.PMTStream[] streams = pmt.getStreams();
+		for (PMTSection.PMTStream stream : streams) {
+			if (stream.isVideo()) {
+				return stream.getPid();
+			}
+		}
+		return streams.length > 0 ? streams[0].getPid() : -1;
+	}
+
+	private void updatePcr(long pcr, boolean discontinuity) {
+		if (lastPcr >= 0 && !discontinuity) {
+			long elapsed = (pcr - lastPcr + PCR_WRAP) % PCR_WRAP;
+			if (elapsed <= MAX_PCR_GAP) {
+				segmentPcrTicks += elapsed;
+			} else {
+				log.warn("PCR discontinuity on PID {}", pcrPid);
+			}
+		}
+		lastPcr = pcr;
+	}
+
+	private void startSegment() throws IOException {
+		if (segmentChannel != null) {
+			finishSegment();
+		}
+		Path path = directory.resolve(segmentName(sequence));
+		segmentChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		segmentPcrTicks = 0;
+		if (patPacket != null) {
+			write(patPacket);
+			for (byte[] pmtPacket : pmtPackets.values()) {
+				if (pmtPacket != null) {
+					write(pmtPacket);
+				}
+			}
+		}
+	}
+
+	private void write(MTSPacket packet) throws IOException {
+		if (staging.remaining() < Constants.MPEGTS_PACKET_SIZE) {
+			writeStaging();
+		}
+		packet.copyTo(staging);
+	}
+
+	private void write(byte[] packet) throws IOException {
+		if (staging.remaining() < Constants.MPEGTS_PACKET_SIZE) {
+			writeStaging();
+		}
+		staging.put(packet);
+	}
+
+	private void writeStaging() throws IOException {
+		staging.flip();
+		try {
+			while (staging.hasRemaining()) {
+				segmentChannel.write(staging);
+			}
+		} finally {
+			staging.clear();
+		}
+	}
+
+	private void finishSegment() throws IOException {
+		try {
+			writeStaging();
+		} finally {
+			segmentChannel.close();
+			segmentChannel = null;
+		}
+		segments.add(new Segment(sequence, segmentPcrTicks));
+		// Durations are rounded to the nearest integer to be compared to the target duration, which must not change
+		// while the playlist lives: it only grows when a segment is longer than any before
+		long duration = (segmentPcrTicks + PCR_CLOCK / 2) / PCR_CLOCK;
+		if (duration > playlistTargetDuration) {
+			log.warn("Segment {} lasts {}s, raising the playlist target duration", sequence, duration);
+			playlistTargetDuration = duration;
+		}
+		sequence++;
+		// One segment out of the playlist is kept, players may still be downloading it
+		while (segments.size() > playlistSize + 1) {
+			Segment removed = segments.poll();
+			Files.deleteIfExists(directory.resolve(segmentName(removed.sequence)));
+		}
+		writePlaylist(false);
+	}
+
+	private void writePlaylist(boolean endList) throws IOException {
+		Iterator<Segment> iterator = segments.iterator();
+		for (int i = segments.size() - playlistSize; i > 0; i--) {
+			iterator.next();
+		}
+		StringBuilder entries = new StringBuilder();
+		long firstSequence = -1;
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if (firstSequence == -1) {
+				firstSequence = segment.sequence;
+			}
+			entries.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", segment.duration / (double) PCR_CLOCK));
+			entries.append(segmentName(segment.sequence)).append('\n');
+		}
+		try (Writer writer = Files.newBufferedWriter(playlistTemp, StandardCharsets.UTF_8)) {
+			writer.write("#EXTM3U\n");
+			writer.write("#EXT-X-VERSION:3\n");
+			writer.write("#EXT-X-TARGETDURATION:" + playlistTargetDuration + "\n");
+			writer.write("#EXT-X-MEDIA-SEQUENCE:" + Math.max(firstSequence, 0) + "\n");
+			writer.write(entries.toString());
+			if (endList) {
+				writer.write("#EXT-X-ENDLIST\n");
+			}
+		}
+		Files.move(playlistTemp, playlist, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private String segmentName(long sequence) {
+		return segmentPrefix + sequence + ".ts";
+	}
+
+	/**
+	 * @return the number of complete segments written
+	 */
+	public synchronized long getSegmentCount() {
+		return sequence;
+	}
+
+	/**
+	 * Completes the current segment and ends the playlist.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (segmentChannel != null) {
+			finishSegment();
+		}
+		writePlaylist(true);
+	}
+
+	private static class Segment {
+		private final long sequence;
+		private final long duration;
+
+		private Segment(long sequence, long duration) {
+			this.sequence = sequence;
+			this.duration = duration;
+		}
+	}
+
+	public static HLSSinkBuilder builder() {
+		return new HLSSinkBuilder();
+	}
+
+	public static class HLSSinkBuilder {
+		private File directory;
+		private String segmentPrefix = "segment";
+		private String playlistName = "playlist.m3u8";
+		private long targetDuration = 6000;
+		private int playlistSize = 5;
+		private int bufferSize = Constants.MPEGTS_PACKET_SIZE * 1024;
+
+		private HLSSinkBuilder() {
+		}
+
+		/**
+		 * Directory the segments and the playlist are written to, created if needed.
+		 */
+		public HLSSinkBuilder setDirectory(File directory) {
+			this.directory = directory;
+			return this;
+		}
+
+		/**
+		 * Segment file names are the prefix followed by the media sequence number, "segment" by default.
+		 */
+		public HLSSinkBuilder setSegmentPrefix(String segmentPrefix) {
+			this.segmentPrefix = segmentPrefix;
+			return this;
+		}
+
+		public HLSSinkBuilder setPlaylistName(String playlistName) {
+			this.playlistName = playlistName;
+			return this;
+		}
+
+		/**
+		 * Minimum segment duration in milliseconds, 6000 by default. Segments are longer by up to one GOP.
+		 */
+		public HLSSinkBuilder setTargetDuration(long targetDuration) {
+			this.targetDuration = targetDuration;
+			return this;
+		}
+
+		/**
+		 * Number of segments listed in the playlist, 5 by default.
+		 */
+		public HLSSinkBuilder setPlaylistSize(int playlistSize) {
+			this.playlistSize = playlistSize;
+			return this;
+		}
+
+		/**
+		 * Size of the staging buffer, rounded down to whole packets. Defaults to 1024 packets.
+		 */
+		public HLSSinkBuilder setBufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		public HLSSink build() throws IOException {
+			Preconditions.checkNotNull(directory, "directory cannot be null");
+			Preconditions.checkNotNull(segmentPrefix, "segmentPrefix cannot be null");
+			Preconditions.checkNotNull(playlistName, "playlistName cannot be null");
+			Preconditions.checkArgument(targetDuration > 0, "targetDuration must be positive");
+			Preconditions.checkArgument(playlistSize > 0, "playlistSize must be positive");
+			Preconditions.checkArgument(bufferSize >= Constants.MPEGTS_PACKET_SIZE, "bufferSize must be at least one packet");
+			Files.createDirectories(directory.toPath());
+			int size = bufferSize / Constants.MPEGTS_PACKET_SIZE * Constants.MPEGTS_PACKET_SIZE;
+			return new HLSSink(directory, segmentPrefix, playlistName, targetDuration, playlistSize, size);
+		}
+	}
+}
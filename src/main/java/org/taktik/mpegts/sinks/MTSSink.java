@@ -1,7 +1,28 @@
 package org.taktik.mpegts.sinks;
 
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
 
 public interface MTSSink {
+	/**
+	 * Sends a packet. The caller releases the packet once this method returns,
+	 * sinks keeping a reference to it afterwards must {@link org.taktik.mpegts.MTSPacket#retain()} it.
+	 */
 	public void send(MTSPacket packet) throws Exception;
+
+	/**
+	 * Sends all packets of the batch, in order. Same ownership rules as {@link #send(org.taktik.mpegts.MTSPacket)}.
+	 */
+	public default void send(PacketBatch batch) throws Exception {
+		for (int i = 0; i < batch.size(); i++) {
+			send(batch.get(i));
+		}
+	}
+
+	/**
+	 * Called when no packet follows for a while, e.g. right before the streamer waits for a deadline. Sinks holding
+	 * packets back, to send them in larger chunks, send them now. Does nothing by default.
+	 */
+	public default void flush() throws Exception {
+	}
 }
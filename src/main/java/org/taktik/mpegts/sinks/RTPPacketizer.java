@@ -0,0 +1,62 @@
+package org.taktik.mpegts.sinks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.RTPHeader;
+
+/**
+ * Keeps the state of an outgoing RTP stream: sequence number, SSRC, and a 90kHz clock following the PCR of the stream.
+ * <br>
+ * The timestamp is the last PCR seen, divided by 300, plus the wall clock time elapsed since it was seen.
+ * Until a PCR is seen, the timestamp follows the wall clock only.
+ */
+class RTPPacketizer {
+	private final int ssrc;
+	private int sequenceNumber;
+
+	private int pcrPid = -1;
+	private long lastPcr = -1;
+	private long lastPcrTime;
+	private final long startTime;
+
+	RTPPacketizer() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		this.ssrc = random.nextInt();
+		this.sequenceNumber = random.nextInt(0x10000);
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * Tracks the PCR of the first PID carrying one.
+	 */
+	void observe(MTSPacket packet) {
+		if (!packet.hasPcr()) {
+			return;
+		}
+		int pid = packet.getPid();
+		if (pcrPid == -1) {
+			pcrPid = pid;
+		}
+		if (pid == pcrPid) {
+			lastPcr = packet.getPcrValue();
+			lastPcrTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Writes the header of the next RTP packet at offset.
+	 */
+	void writeHeader(ByteBuffer buffer, int offset) {
+		long now = System.nanoTime();
+		long timestamp;
+		if (lastPcr >= 0) {
+			timestamp = lastPcr / 300 + (now - lastPcrTime) * 9 / 100_000; // 90kHz
+		} else {
+			timestamp = (now - startTime) * 9 / 100_000; // 90kHz
+		}
+		RTPHeader.write(buffer, offset, sequenceNumber, timestamp, ssrc);
+		sequenceNumber = (sequenceNumber + 1) & 0xffff;
+	}
+}
@@ -0,0 +1,237 @@
+package org.taktik.mpegts.sinks;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.ioutils.TimeUtils;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+
+/**
+ * Spreads packets evenly at a peak rate before handing them to a sink, so that the data between two PCRs does not
+ * leave as one burst.
+ * <br>
+ * A token bucket (implemented as a virtual scheduling clock) lets at most burstSize packets through at once, then one
+ * packet every 188 * 8 / rate seconds. Waits are precise to a few microseconds, see {@link TimeUtils#waitUntil(long, long)},
+ * and happen in the calling thread: wrap this sink in an {@link AsyncSink} to keep them off the streaming thread.
+ * The rate must be above the bitrate of the stream, or the shaper falls behind.
+ * <br>
+ * The gaps between consecutive packets are measured as a histogram, along with their coefficient of variation
+ * (0 for a perfectly regular output, higher when packets are sent in bursts).
+ */
+public class ShapingSink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
+
+	private static final long PACKET_BITS_NANOS = Constants.MPEGTS_PACKET_SIZE * 8 * 1_000_000_000L;
+	private static final int HISTOGRAM_SIZE = 40;
+
+	private final MTSSink sink;
+	private final long rate;
+	private final long packetNanos;
+	private final long packetNanosRemainder;
+	private final long burstTolerance;
+	private final long spinNanos;
+	private final PacketBatch pending;
+
+	// Theoretical time of the next packet at the peak rate, and the sub-nanosecond part of it in units of 1/rate
+	private long nextPacketTime = Long.MIN_VALUE;
+	private long nextPacketRemainder;
+
+	private long lastSendTime = Long.MIN_VALUE;
+	private final long[] gapHistogram = new long[HISTOGRAM_SIZE];
+	private long gapCount;
+	private double gapSum;
+	private double gapSquareSum;
+	private long waitCount;
+	private long maxOvershootNanos;
+
+	private ShapingSink(MTSSink sink, long rate, int burstSize, long spinNanos) {
+		this.sink = sink;
+		this.rate = rate;
+		this.packetNanos = PACKET_BITS_NANOS / rate;
+		this.packetNanosRemainder = PACKET_BITS_NANOS % rate;
+		this.burstTolerance = (burstSize - 1) * PACKET_BITS_NANOS / rate;
+		this.spinNanos = spinNanos;
+		this.pending = new PacketBatch(burstSize);
+	}
+
+	@Override
+	public synchronized void send(MTSPacket packet) throws Exception {
+		add(packet);
+		sendPending();
+	}
+
+	@Override
+	public synchronized void send(PacketBatch batch) throws Exception {
+		for (int i = 0; i < batch.size(); i++) {
+			add(batch.get(i));
+		}
+		sendPending();
+	}
+
+	private void add(MTSPacket packet) throws Exception {
+		long now = System.nanoTime();
+		if (nextPacketTime == Long.MIN_VALUE || nextPacketTime < now) {
+			// Idle: tokens do not accumulate beyond the bucket size
+			nextPacketTime = now;
+			nextPacketRemainder = 0;
+		} else if (nextPacketTime - now > burstTolerance) {
+			// Out of tokens: whatever is allowed already leaves now, this packet waits
+			sendPending();
+			sink.flush();
+			long overshoot = TimeUtils.waitUntil(nextPacketTime - burstTolerance, spinNanos);
+			waitCount++;
+			if (overshoot > maxOvershootNanos) {
+				maxOvershootNanos = overshoot;
+			}
+		}
+		if (pending.isFull()) {
+			sendPending();
+		}
+		pending.add(packet);
+		nextPacketTime += packetNanos;
+		nextPacketRemainder += packetNanosRemainder;
+		if (nextPacketRemainder >= rate) {
+			nextPacketTime++;
+			nextPacketRemainder -= rate;
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws Exception {
+		// Nothing is left pending between calls
+		sink.flush();
+	}
+
+	private void sendPending() throws Exception {
+		if (pending.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (int i = 0; i < pending.size(); i++) {
+			if (lastSendTime != Long.MIN_VALUE) {
+				recordGap(now - lastSendTime);
+			}
+			lastSendTime = now;
+		}
+		try {
+			sink.send(pending);
+		} finally {
+			// Packets belong to the caller
+			pending.clear();
+		}
+	}
+
+	private void recordGap(long gap) {
+		int bucket = Math.min(HISTOGRAM_SIZE - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, gap)));
+		gapHistogram[bucket]++;
+		gapCount++;
+		gapSum += gap;
+		gapSquareSum += (double) gap * gap;
+	}
+
+	public MTSSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * @return the peak rate, in bits per second
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Gaps between consecutive packets: bucket 0 counts packets sent at the same time as the previous one, and bucket i
+	 * counts gaps from 2^(i-1) to 2^i - 1 nanoseconds. The last bucket counts all longer gaps.
+	 */
+	public synchronized long[] getGapHistogram() {
+		return gapHistogram.clone();
+	}
+
+	/**
+	 * @return the average gap between consecutive packets, in nanoseconds
+	 */
+	public synchronized long getAverageGapNanos() {
+		return gapCount > 0 ? (long) (gapSum / gapCount) : 0;
+	}
+
+	/**
+	 * @return the standard deviation of the gaps between packets divided by their average, a measure of burstiness
+	 */
+	public synchronized double getGapCoefficientOfVariation() {
+		if (gapCount == 0 || gapSum == 0) {
+			return 0;
+		}
+		double mean = gapSum / gapCount;
+		double variance = Math.max(0, gapSquareSum / gapCount - mean * mean);
+		return Math.sqrt(variance) / mean;
+	}
+
+	/**
+	 * @return the number of times the shaper had to wait for tokens
+	 */
+	public synchronized long getWaitCount() {
+		return waitCount;
+	}
+
+	/**
+	 * @return how late the shaper woke up after a wait at worst, in nanoseconds
+	 */
+	public synchronized long getMaxOvershootNanos() {
+		return maxOvershootNanos;
+	}
+
+	public static ShapingSinkBuilder builder() {
+		return new ShapingSinkBuilder();
+	}
+
+	public static class ShapingSinkBuilder {
+		private MTSSink sink;
+		private long rate;
+		private int burstSize = 7;
+		private long spinNanos = TimeUtils.DEFAULT_SPIN_NANOS;
+
+		private ShapingSinkBuilder() {
+		}
+
+		public ShapingSinkBuilder setSink(MTSSink sink) {
+			this.sink = sink;
+			return this;
+		}
+
+		/**
+		 * Peak rate in bits per second, mandatory.
+		 */
+		public ShapingSinkBuilder setRate(long rate) {
+			this.rate = rate;
+			return this;
+		}
+
+		/**
+		 * Number of packets that may leave at once, 7 (one UDP datagram) by default.
+		 */
+		public ShapingSinkBuilder setBurstSize(int burstSize) {
+			this.burstSize = burstSize;
+			return this;
+		}
+
+		/**
+		 * How long before a deadline the shaper stops parking and spins, 100 microseconds by default.
+		 * Higher values are more precise, and burn more CPU.
+		 */
+		public ShapingSinkBuilder setSpinNanos(long spinNanos) {
+			this.spinNanos = spinNanos;
+			return this;
+		}
+
+		public ShapingSink build() {
+			Preconditions.checkNotNull(sink, "sink cannot be null");
+			Preconditions.checkArgument(rate > 0, "rate must be positive");
+			Preconditions.checkArgument(burstSize > 0, "burstSize must be positive");
+			Preconditions.checkArgument(spinNanos >= 0, "spinNanos cannot be negative");
+			return new ShapingSink(sink, rate, burstSize, spinNanos);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package org.taktik.mpegts.sinks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+
+/**
+ * Serves the packet stream to any number of TCP clients, either raw or as an HTTP chunked video/mp2t response.
+ * <br>
+ * A single thread runs a {@link Selector} event loop accepting clients and writing to them. Packets sent to the sink are
+ * copied into chunks handed over to the event loop, which appends each chunk to the write buffer of every client.
+ * A client whose write buffer cannot hold the next chunk is too far behind and gets disconnected, so that slow clients
+ * never delay the streaming thread nor the other clients.
+ */
+public class TCPServerSink implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
+
+	private static final int MAX_REQUEST_SIZE = 8192;
+	// How long accepting stops after an error, e.g. when out of file descriptors
+	private static final long ACCEPT_PAUSE_MILLIS = 100;
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] HTTP_RESPONSE = ("HTTP/1.1 200 OK\r\n"
+			+ "Content-Type: video/mp2t\r\n"
+			+ "Transfer-Encoding: chunked\r\n"
+			+ "Cache-Control: no-cache\r\n"
+			+ "Connection: close\r\n"
+			+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final SelectionKey serverKey;
+	private final boolean http;
+	private final int clientBufferSize;
+	private final Thread eventLoop;
+	private volatile boolean closed;
+
+	// Chunks of packets, filled by the streaming thread and written to clients by the event loop
+	private final int chunkSize;
+	private final ConcurrentLinkedQueue<ByteBuffer> chunks;
+	private final ArrayBlockingQueue<ByteBuffer> freeChunks;
+	private ByteBuffer currentChunk;
+
+	private final AtomicInteger clientCount = new AtomicInteger();
+	private final AtomicLong acceptedClientCount = new AtomicLong();
+	private final AtomicLong droppedClientCount = new AtomicLong();
+
+	private TCPServerSink(ServerSocketChannel serverChannel, boolean http, int clientBufferSize, int chunkPackets) throws IOException {
+		this.serverChannel = serverChannel;
+		this.http = http;
+		this.clientBufferSize = clientBufferSize;
+		this.chunkSize = chunkPackets * Constants.MPEGTS_PACKET_SIZE;
+		this.chunks = new ConcurrentLinkedQueue<>();
+		this.freeChunks = new ArrayBlockingQueue<>(256);
+		this.selector = Selector.open();
+		serverChannel.configureBlocking(false);
+		this.serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		this.eventLoop = new Thread(this::run, "tcp-server");
+		this.eventLoop.setDaemon(true);
+		this.eventLoop.start();
+	}
+
+	@Override
+	public synchronized void send(MTSPacket packet) {
+		add(packet);
+		dispatch();
+	}
+
+	@Override
+	public synchronized void send(PacketBatch batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			add(batch.get(i));
+		}
+		dispatch();
+	}
+
+	private void add(MTSPacket packet) {
+		if (currentChunk == null) {
+			currentChunk = freeChunks.poll();
+			if (currentChunk == null) {
+				currentChunk = ByteBuffer.allocate(chunkSize);
+			}
+		}
+		packet.copyTo(currentChunk);
+		if (!currentChunk.hasRemaining()) {
+			dispatch();
+		}
+	}
+
+	private void dispatch() {
+		if (currentChunk == null) {
+			return;
+		}
+		if (clientCount.get() == 0) {
+			// Nobody is listening
+			currentChunk.clear();
+			return;
+		}
+		currentChunk.flip();
+		chunks.add(currentChunk);
+		currentChunk = null;
+		selector.wakeup();
+	}
+
+	private void run() {
+		long acceptPausedUntil = 0;
+		try {
+			while (!closed) {
+				if (acceptPausedUntil == 0) {
+					selector.select();
+				} else {
+					long remaining = acceptPausedUntil - System.currentTimeMillis();
+					if (remaining > 0) {
+						selector.select(remaining);
+					} else {
+						serverKey.interestOps(SelectionKey.OP_ACCEPT);
+						acceptPausedUntil = 0;
+						selector.selectNow();
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							accept();
+						} catch (IOException e) {
+							// The pending connection stays ready: retry later rather than spin on it
+							log.warn("Error accepting clients, retrying in {}ms", ACCEPT_PAUSE_MILLIS, e);
+							serverKey.interestOps(0);
+							acceptPausedUntil = System.currentTimeMillis() + ACCEPT_PAUSE_MILLIS;
+						}
+					} else {
+						Client client = (Client) key.attachment();
+						if (key.isReadable()) {
+							client.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							client.write();
+						}
+					}
+				}
+				ByteBuffer chunk;
+				while ((chunk = chunks.poll()) != null) {
+					for (SelectionKey key : selector.keys()) {
+						if (key.attachment() != null && key.isValid()) {
+							((Client) key.attachment()).append(chunk);
+						}
+					}
+					chunk.clear();
+					freeChunks.offer(chunk);
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// Closed
+		} catch (IOException | RuntimeException e) {
+			log.error("Server event loop failed", e);
+		} finally {
+			if (!closed) {
+				stopServing();
+			}
+		}
+	}
+
+	private void stopServing() {
+		// Nobody writes to clients anymore: close them, so that dispatch() stops queueing chunks
+		try {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					((Client) key.attachment()).close("server failed");
+				}
+			}
+		} catch (ClosedSelectorException ignored) {
+		}
+		clientCount.set(0);
+		chunks.clear();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			Client client = new Client(channel);
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				client.key = channel.register(selector, SelectionKey.OP_READ, client);
+			} catch (IOException e) {
+				log.warn("Error setting up client", e);
+				channel.close();
+				continue;
+			}
+			acceptedClientCount.incrementAndGet();
+			if (!http) {
+				client.streaming = true;
+				clientCount.incrementAndGet();
+			}
+			log.info("Client {} connected", channel.getRemoteAddress());
+		}
+	}
+
+	private class Client {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private final ByteBuffer buffer;
+		private ByteBuffer request;
+		private boolean streaming;
+
+		private Client(SocketChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(clientBufferSize);
+			this.request = http ? ByteBuffer.allocate(MAX_REQUEST_SIZE) : ByteBuffer.allocate(1024);
+		}
+
+		private void read() {
+			try {
+				if (channel.read(request) < 0) {
+					close("disconnected");
+					return;
+				}
+			} catch (IOException e) {
+				close("read error: " + e.getMessage());
+				return;
+			}
+			if (streaming) {
+				// Ignore anything sent while streaming
+				request.clear();
+			} else if (endOfRequest()) {
+				request = null;
+				buffer.put(HTTP_RESPONSE);
+				streaming = true;
+				clientCount.incrementAndGet();
+				// Stop reading, HTTP clients do not send anything else
+				key.interestOps(SelectionKey.OP_WRITE);
+				write();
+			} else if (!request.hasRemaining()) {
+				close("request too large");
+			}
+		}
+
+		private boolean endOfRequest() {
+			int end = request.position();
+			for (int i = 3; i < end; i++) {
+				if (request.get(i - 3) == '\r' && request.get(i - 2) == '\n' && request.get(i - 1) == '\r' && request.get(i) == '\n') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void append(ByteBuffer chunk) {
+			if (!streaming) {
+				return;
+			}
+			int length = chunk.remaining();
+			// Chunk size in hexadecimal, CRLF, data, CRLF
+			int needed = length + (http ? 8 + 2 * CRLF.length : 0);
+			if (buffer.remaining() < needed) {
+				droppedClientCount.incrementAndGet();
+				close("too far behind");
+				return;
+			}
+			if (http) {
+				putHex(length);
+				buffer.put(CRLF);
+			}
+			int position = chunk.position();
+			buffer.put(chunk);
+			chunk.position(position);
+			if (http) {
+				buffer.put(CRLF);
+			}
+			write();
+		}
+
+		private void putHex(int value) {
+			int digits = Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(value) + 3) / 4);
+			for (int i = digits - 1; i >= 0; i--) {
+				buffer.put((byte) Character.forDigit((value >>> (i * 4)) & 0xf, 16));
+			}
+		}
+
+		private void write() {
+			buffer.flip();
+			try {
+				channel.write(buffer);
+			} catch (IOException e) {
+				buffer.clear();
+				close("write error: " + e.getMessage());
+				return;
+			}
+			boolean pending = buffer.hasRemaining();
+			buffer.compact();
+			if (key.isValid()) {
+				int ops = http ? 0 : SelectionKey.OP_READ;
+				key.interestOps(pending ? ops | SelectionKey.OP_WRITE : ops);
+			}
+		}
+
+		private void close(String reason) {
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				log.info("Closing client {}: {}", channel.getRemoteAddress(), reason);
+			} catch (IOException ignored) {
+			}
+			if (streaming) {
+				clientCount.decrementAndGet();
+				streaming = false;
+			}
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return the number of clients currently receiving the stream
+	 */
+	public int getClientCount() {
+		return clientCount.get();
+	}
+
+	/**
+	 * @return the number of clients accepted since the server started
+	 */
+	public long getAcceptedClientCount() {
+		return acceptedClientCount.get();
+	}
+
+	/**
+	 * @return the number of clients disconnected because they could not keep up with the stream
+	 */
+	public long getDroppedClientCount() {
+		return droppedClientCount.get();
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			eventLoop.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null) {
+				((Client) key.attachment()).close("server closed");
+			}
+		}
+		selector.close();
+		serverChannel.close();
+	}
+
+	public static TCPServerSinkBuilder builder() {
+		return new TCPServerSinkBuilder();
+	}
+
+	public static class TCPServerSinkBuilder {
+		private String address;
+		private int port;
+		private boolean http = false;
+		private int clientBufferSize = 1024 * 1024;
+		private int chunkPackets = 64;
+
+		private TCPServerSinkBuilder() {
+		}
+
+		/**
+		 * Local address to listen on, all addresses by default.
+		 */
+		public TCPServerSinkBuilder setAddress(String address) {
+			this.address = address;
+			return this;
+		}
+
+		/**
+		 * Port to listen on, 0 to pick a free one (see {@link TCPServerSink#getPort()}).
+		 */
+		public TCPServerSinkBuilder setPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Whether clients are HTTP clients expecting a chunked response, false (raw TCP) by default.
+		 */
+		public TCPServerSinkBuilder setHttp(boolean http) {
+			this.http = http;
+			return this;
+		}
+
+		/**
+		 * Size of the write buffer of each client, 1MB by default: a client further behind is disconnected.
+		 */
+		public TCPServerSinkBuilder setClientBufferSize(int clientBufferSize) {
+			this.clientBufferSize = clientBufferSize;
+			return this;
+		}
+
+		/**
+		 * Maximum number of packets handed over to the event loop at once, 64 by default.
+		 */
+		public TCPServerSinkBuilder setChunkPackets(int chunkPackets) {
+			this.chunkPackets = chunkPackets;
+			return this;
+		}
+
+		public TCPServerSink build() throws IOException {
+			Preconditions.checkArgument(port >= 0 && port < 65536, "Invalid port");
+			Preconditions.checkArgument(chunkPackets > 0, "chunkPackets must be positive");
+			Preconditions.checkArgument(clientBufferSize >= chunkPackets * Constants.MPEGTS_PACKET_SIZE + 64, "clientBufferSize must hold at least one chunk");
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			try {
+				serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				serverChannel.bind(address != null ? new InetSocketAddress(address, port) : new InetSocketAddress(port));
+				return new TCPServerSink(serverChannel, http, clientBufferSize, chunkPackets);
+			} catch (IOException | RuntimeException e) {
+				serverChannel.close();
+				throw e;
+			}
+		}
+	}
+}
@@ -5,17 +5,47 @@ import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
-
+import org.taktik.mpegts.PacketBatch;
+import org.taktik.mpegts.RTPHeader;
+
+/**
+ * Sends packets over UDP, packing packetsPerDatagram packets (7 by default, 1316 bytes) into each datagram.
+ * <br>
+ * Packets wait for their datagram to be filled, until {@link #flush()} is called (the streamer does before each wait),
+ * or at most until the oldest one has been waiting for flushTimeout milliseconds, so that low bitrate streams are not
+ * delayed.
+ * <br>
+ * With RTP enabled, each datagram starts with an RTP header (RFC 2250), written in place in the reused datagram array.
+ */
 public class UDPTransport implements MTSSink {
+	static final Logger log = LoggerFactory.getLogger("sink");
 
 	private final InetSocketAddress inetSocketAddress;
 	private final MulticastSocket multicastSocket;
+	private final DatagramPacket datagramPacket;
+
+	private final byte[] datagram;
+	private final ByteBuffer datagramBuffer;
+	private final RTPPacketizer rtpPacketizer;
+	private final int headerSize;
+	private final int packetsPerDatagram;
+	private int packetCount;
+	private long firstPacketTime;
+
+	private final long flushTimeoutNanos;
+	private final ScheduledExecutorService flushScheduler;
 
 
-	private UDPTransport(String address, int port, int ttl, int soTimeout) throws IOException {
+	private UDPTransport(String address, int port, int ttl, int soTimeout, int packetsPerDatagram, long flushTimeout, boolean rtp) throws IOException {
 		// InetSocketAddress
 		inetSocketAddress = new InetSocketAddress(address, port);
 
@@ -25,17 +55,90 @@ public class UDPTransport implements MTSSink {
 		multicastSocket.setReuseAddress(true);
 		multicastSocket.setSoTimeout(soTimeout);
 		multicastSocket.setTimeToLive(ttl);
+
+		// Reused for every datagram
+		this.packetsPerDatagram = packetsPerDatagram;
+		rtpPacketizer = rtp ? new RTPPacketizer() : null;
+		headerSize = rtp ? RTPHeader.HEADER_SIZE : 0;
+		datagram = new byte[headerSize + packetsPerDatagram * Constants.MPEGTS_PACKET_SIZE];
+		datagramBuffer = ByteBuffer.wrap(datagram);
+		datagramPacket = new DatagramPacket(datagram, 0, inetSocketAddress);
+
+		flushTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(flushTimeout);
+		if (packetsPerDatagram > 1 && flushTimeout > 0) {
+			flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "udp-flush");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long period = Math.max(1, flushTimeout / 2);
+			flushScheduler.scheduleAtFixedRate(this::flushIfExpired, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			flushScheduler = null;
+		}
+	}
+
+	@Override
+	public synchronized void send(MTSPacket packet) throws IOException {
+		add(packet);
+	}
+
+	@Override
+	public synchronized void send(PacketBatch batch) throws IOException {
+		for (int i = 0; i < batch.size(); i++) {
+			add(batch.get(i));
+		}
+	}
+
+	private void add(MTSPacket packet) throws IOException {
+		if (packetCount == 0) {
+			firstPacketTime = System.nanoTime();
+		}
+		if (rtpPacketizer != null) {
+			rtpPacketizer.observe(packet);
+		}
+		packet.copyTo(datagram, headerSize + packetCount * Constants.MPEGTS_PACKET_SIZE);
+		packetCount++;
+		if (packetCount == packetsPerDatagram) {
+			flush();
+		}
 	}
 
+	/**
+	 * Sends the packets waiting for a datagram to be filled, if any.
+	 */
 	@Override
-	public void send(MTSPacket packet) throws IOException {
-		ByteBuffer buffer = packet.getBuffer();
-		Preconditions.checkArgument(buffer.hasArray());
-		DatagramPacket datagramPacket = new DatagramPacket(buffer.array(), buffer.arrayOffset(), buffer.limit(), inetSocketAddress);
+	public synchronized void flush() throws IOException {
+		if (packetCount == 0) {
+			return;
+		}
+		if (rtpPacketizer != null) {
+			rtpPacketizer.writeHeader(datagramBuffer, 0);
+		}
+		datagramPacket.setLength(headerSize + packetCount * Constants.MPEGTS_PACKET_SIZE);
+		packetCount = 0;
 		multicastSocket.send(datagramPacket);
 	}
 
+	private synchronized void flushIfExpired() {
+		if (packetCount > 0 && System.nanoTime() - firstPacketTime >= flushTimeoutNanos) {
+			try {
+				flush();
+			} catch (IOException e) {
+				log.warn("Error flushing datagram", e);
+			}
+		}
+	}
+
 	public void close() {
+		if (flushScheduler != null) {
+			flushScheduler.shutdownNow();
+		}
+		try {
+			flush();
+		} catch (IOException e) {
+			log.warn("Error flushing datagram", e);
+		}
 		multicastSocket.close();
 	}
 
@@ -48,6 +151,9 @@ public class UDPTransport implements MTSSink {
 		private int port;
 		private int ttl;
 		private int soTimeout;
+		private int packetsPerDatagram = 7;
+		private long flushTimeout = 10;
+		private boolean rtp = false;
 
 		public UDPTransportBuilder setAddress(String address) {
 			this.address = address;
@@ -69,8 +175,35 @@ public class UDPTransport implements MTSSink {
 			return this;
 		}
 
+		/**
+		 * Number of packets sent in each datagram, 7 by default. Use 1 to send every packet on its own.
+		 */
+		public UDPTransportBuilder setPacketsPerDatagram(int packetsPerDatagram) {
+			this.packetsPerDatagram = packetsPerDatagram;
+			return this;
+		}
+
+		/**
+		 * Maximum time in milliseconds a packet waits for its datagram to be filled, 10 by default.
+		 * 0 disables the timeout.
+		 */
+		public UDPTransportBuilder setFlushTimeout(long flushTimeout) {
+			this.flushTimeout = flushTimeout;
+			return this;
+		}
+
+		/**
+		 * Whether to encapsulate packets in RTP, false by default.
+		 */
+		public UDPTransportBuilder setRtp(boolean rtp) {
+			this.rtp = rtp;
+			return this;
+		}
+
 		public UDPTransport build() throws IOException {
-			return new UDPTransport(address, port, ttl, soTimeout);
+			Preconditions.checkArgument(packetsPerDatagram > 0 && packetsPerDatagram * Constants.MPEGTS_PACKET_SIZE <= 65507, "Invalid packetsPerDatagram");
+			Preconditions.checkArgument(flushTimeout >= 0, "flushTimeout cannot be negative");
+			return new UDPTransport(address, port, ttl, soTimeout, packetsPerDatagram, flushTimeout, rtp);
 		}
 	}
 }
@@ -1,9 +1,24 @@
 package org.taktik.mpegts.sources;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+import org.taktik.mpegts.PacketPool;
 
 public abstract class AbstractMTSSource implements MTSSource {
 	private boolean closed;
+	protected final PacketPool packetPool;
+
+	protected AbstractMTSSource() {
+		this(null);
+	}
+
+	protected AbstractMTSSource(PacketPool packetPool) {
+		this.packetPool = packetPool;
+	}
 
 	@Override
 	public final MTSPacket nextPacket() throws Exception {
@@ -13,6 +28,14 @@ public abstract class AbstractMTSSource implements MTSSource {
 		return nextPacketInternal();
 	}
 
+	@Override
+	public final int nextPackets(PacketBatch batch) throws Exception {
+		if (closed) {
+			throw new IllegalStateException("Source is closed");
+		}
+		return nextPacketsInternal(batch);
+	}
+
 	@Override
 	public final void close() throws Exception {
 		try {
@@ -26,7 +49,47 @@ public abstract class AbstractMTSSource implements MTSSource {
 		return closed;
 	}
 
+	/**
+	 * Copies the next 188 bytes of the buffer into a new packet, taken from the packet pool if there is one.
+	 */
+	protected MTSPacket newPacket(ByteBuffer buffer) {
+		if (packetPool != null) {
+			return packetPool.acquire(buffer);
+		}
+		ByteBuffer packetBuffer = ByteBuffer.allocate(Constants.MPEGTS_PACKET_SIZE);
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + Constants.MPEGTS_PACKET_SIZE);
+		packetBuffer.put(buffer);
+		buffer.limit(limit);
+		packetBuffer.flip();
+		return new MTSPacket(packetBuffer);
+	}
+
+	/**
+	 * Copies 188 bytes of the array, starting at offset, into a new packet, taken from the packet pool if there is one.
+	 */
+	protected MTSPacket newPacket(byte[] array, int offset) {
+		if (packetPool != null) {
+			return packetPool.acquire(array, offset);
+		}
+		return new MTSPacket(ByteBuffer.wrap(Arrays.copyOfRange(array, offset, offset + Constants.MPEGTS_PACKET_SIZE)));
+	}
+
 	protected abstract MTSPacket nextPacketInternal() throws Exception;
+
+	/**
+	 * Default batch implementation, calling {@link #nextPacketInternal()} until the batch is full.
+	 * Subclasses able to produce several packets at once should override it.
+	 */
+	protected int nextPacketsInternal(PacketBatch batch) throws Exception {
+		int count = 0;
+		MTSPacket packet;
+		while (!batch.isFull() && (packet = nextPacketInternal()) != null) {
+			batch.add(packet);
+			count++;
+		}
+		return count;
+	}
 	protected abstract void closeInternal() throws Exception;
 
 
@@ -8,11 +8,12 @@ import com.google.common.base.Preconditions;
 import org.taktik.ioutils.NIOUtils;
 import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketPool;
 
 public class ByteChannelMTSSource extends AbstractByteChannelMTSSource<ByteChannel> {
 
-	private ByteChannelMTSSource(ByteChannel byteChannel) throws IOException {
-		super(byteChannel);
+	private ByteChannelMTSSource(ByteChannel byteChannel, PacketPool packetPool) throws IOException {
+		super(byteChannel, packetPool);
 	}
 
 	public static ByteChannelMTSSourceBuilder builder() {
@@ -21,6 +22,7 @@ public class ByteChannelMTSSource extends AbstractByteChannelMTSSource<ByteChann
 
 	public static class ByteChannelMTSSourceBuilder {
 		private ByteChannel byteChannel;
+		private PacketPool packetPool;
 
 		private ByteChannelMTSSourceBuilder(){}
 
@@ -29,9 +31,14 @@ public class ByteChannelMTSSource extends AbstractByteChannelMTSSource<ByteChann
 			return this;
 		}
 
+		public ByteChannelMTSSourceBuilder setPacketPool(PacketPool packetPool) {
+			this.packetPool = packetPool;
+			return this;
+		}
+
 		public ByteChannelMTSSource build() throws IOException {
 			Preconditions.checkNotNull(byteChannel, "byteChannel cannot be null");
-			return new ByteChannelMTSSource(byteChannel);
+			return new ByteChannelMTSSource(byteChannel, packetPool);
 		}
 	}
 }
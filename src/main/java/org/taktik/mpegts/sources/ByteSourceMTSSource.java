@@ -1,22 +1,28 @@
 package org.taktik.mpegts.sources;
 
 import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 
 import com.google.common.base.Preconditions;
 import com.google.common.io.ByteSource;
-import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+import org.taktik.mpegts.PacketPool;
 
 public class ByteSourceMTSSource extends AbstractMTSSource implements ResettableMTSSource {
+	private static final int BUFFER_SIZE = 64 * 1024;
 
 	private ByteSource byteSource;
 
 	private InputStream stream;
 
+	private final PacketReader reader;
 
-	private ByteSourceMTSSource(ByteSource byteSource) {
+
+	private ByteSourceMTSSource(ByteSource byteSource, PacketPool packetPool) {
+		super(packetPool);
 		this.byteSource = byteSource;
+		this.reader = new PacketReader(null, BUFFER_SIZE);
 	}
 
 	@Override
@@ -26,23 +32,43 @@ public class ByteSourceMTSSource extends AbstractMTSSource implements Resettable
 				//close
 			}
 		}
-		stream = byteSource.openBufferedStream();
+		open();
+	}
+
+	private void open() throws Exception {
+		// The reader reads large blocks, no need for a buffered stream
+		stream = byteSource.openStream();
+		reader.reset(Channels.newChannel(stream));
 	}
 
 	@Override
 	protected MTSPacket nextPacketInternal() throws Exception {
 		if (stream == null) {
-			stream = byteSource.openBufferedStream();
+			open();
 		}
+		return reader.nextPacket(this);
+	}
 
-		byte[] barray = new byte[Constants.MPEGTS_PACKET_SIZE];
-		if (stream.read(barray) != Constants.MPEGTS_PACKET_SIZE) {
-			stream.close();
-			return null;
+	@Override
+	protected int nextPacketsInternal(PacketBatch batch) throws Exception {
+		if (stream == null) {
+			open();
 		}
+		return reader.nextPackets(this, batch);
+	}
+
+	/**
+	 * @return the number of times the source lost sync with the packet boundaries
+	 */
+	public long getLostSyncCount() {
+		return reader.getLostSyncCount();
+	}
 
-		// Parse the packet
-		return new MTSPacket(ByteBuffer.wrap(barray));
+	/**
+	 * @return the number of bytes skipped while looking for packet boundaries
+	 */
+	public long getSkippedBytes() {
+		return reader.getSkippedBytes();
 	}
 
 	@Override
@@ -60,18 +86,24 @@ public class ByteSourceMTSSource extends AbstractMTSSource implements Resettable
 
 	public static class ByteSourceMTSSourceBuilder {
 		private ByteSource byteSource;
+		private PacketPool packetPool;
 
 		private ByteSourceMTSSourceBuilder() {
 		}
 
 		public ByteSourceMTSSource build() {
 			Preconditions.checkNotNull(byteSource);
-			return new ByteSourceMTSSource(byteSource);
+			return new ByteSourceMTSSource(byteSource, packetPool);
 		}
 
 		public ByteSourceMTSSourceBuilder setByteSource(ByteSource byteSource) {
 			this.byteSource = byteSource;
 			return this;
 		}
+
+		public ByteSourceMTSSourceBuilder setPacketPool(PacketPool packetPool) {
+			this.packetPool = packetPool;
+			return this;
+		}
 	}
 }
@@ -2,8 +2,10 @@ package org.taktik.mpegts.sources;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.taktik.mpegts.MTSPacket;
 
 
@@ -22,32 +24,33 @@ import org.taktik.mpegts.MTSPacket;
  * then {@link #nextSource()} after the last packet of the current source and before the first packet of the next source.
  */
 public class ContinuityFixer {
-	private Map<Integer, MTSPacket> pcrPackets;
-	private Map<Integer, MTSPacket> allPackets;
+	private Map<Integer, Long> pcrs;
+	private Map<Integer, Integer> continuityCounters;
 	private Map<Integer, Long> ptss;
 	private Map<Integer, Long> lastPTSsOfPreviousSource;
 	private Map<Integer, Long> lastPCRsOfPreviousSource;
 	private Map<Integer, Long> firstPCRsOfCurrentSource;
 	private Map<Integer, Long> firstPTSsOfCurrentSource;
 
-	private Map<Integer, MTSPacket> lastPacketsOfPreviousSource = Maps.newHashMap();
-	private Map<Integer, MTSPacket> firstPacketsOfCurrentSource = Maps.newHashMap();
-	private Map<Integer, Integer> continuityFixes = Maps.newHashMap();
+	// Packets may be recycled once sent, so only values are kept, never packets
+	private Map<Integer, Integer> lastContinuityCountersOfPreviousSource;
+	private Set<Integer> pidsOfCurrentSource;
+	private Map<Integer, Integer> continuityFixes;
 
 	private boolean firstSource;
 
 
 	public ContinuityFixer() {
-		pcrPackets = Maps.newHashMap();
-		allPackets = Maps.newHashMap();
+		pcrs = Maps.newHashMap();
+		continuityCounters = Maps.newHashMap();
 		ptss = Maps.newHashMap();
 		lastPTSsOfPreviousSource = Maps.newHashMap();
 		lastPCRsOfPreviousSource = Maps.newHashMap();
 		firstPCRsOfCurrentSource = Maps.newHashMap();
 		firstPTSsOfCurrentSource = Maps.newHashMap();
 
-		lastPacketsOfPreviousSource = Maps.newHashMap();
-		firstPacketsOfCurrentSource = Maps.newHashMap();
+		lastContinuityCountersOfPreviousSource = Maps.newHashMap();
+		pidsOfCurrentSource = Sets.newHashSet();
 		continuityFixes = Maps.newHashMap();
 		firstSource = true;
 	}
@@ -63,19 +66,24 @@ public class ContinuityFixer {
 		lastPCRsOfPreviousSource.clear();
 		firstPTSsOfCurrentSource.clear();
 		lastPTSsOfPreviousSource.clear();
-		firstPacketsOfCurrentSource.clear();
-		lastPacketsOfPreviousSource.clear();
-		for (MTSPacket mtsPacket : pcrPackets.values()) {
-			lastPCRsOfPreviousSource.put(mtsPacket.getPid(), mtsPacket.getAdaptationField().getPcr().getValue());
-		}
+		pidsOfCurrentSource.clear();
+		lastContinuityCountersOfPreviousSource.clear();
+		lastPCRsOfPreviousSource.putAll(pcrs);
 		lastPTSsOfPreviousSource.putAll(ptss);
-		lastPacketsOfPreviousSource.putAll(allPackets);
-		pcrPackets.clear();
+		lastContinuityCountersOfPreviousSource.putAll(continuityCounters);
+		pcrs.clear();
 		ptss.clear();
-		allPackets.clear();
+		continuityCounters.clear();
 		firstSource = false;
 	}
 
+	/**
+	 * @return whether {@link #fixContinuity(MTSPacket)} modifies packets: packets of the first source are left untouched
+	 */
+	public boolean rewritesPackets() {
+		return !firstSource;
+	}
+
 	/**
 	 * Fix the continuity of the packet.
 	 *
@@ -85,12 +93,10 @@ public class ContinuityFixer {
 	 */
 	public void fixContinuity(MTSPacket tsPacket) {
 		int pid = tsPacket.getPid();
-		allPackets.put(pid, tsPacket);
-		if (!firstPacketsOfCurrentSource.containsKey(pid)) {
-			firstPacketsOfCurrentSource.put(pid, tsPacket);
+		if (pidsOfCurrentSource.add(pid)) {
 			if (!firstSource) {
-				MTSPacket lastPacketOfPreviousSource = lastPacketsOfPreviousSource.get(pid);
-				int continuityFix = lastPacketOfPreviousSource == null ? 0 : lastPacketOfPreviousSource.getContinuityCounter() - tsPacket.getContinuityCounter();
+				Integer lastContinuityCounterOfPreviousSource = lastContinuityCountersOfPreviousSource.get(pid);
+				int continuityFix = lastContinuityCounterOfPreviousSource == null ? 0 : lastContinuityCounterOfPreviousSource - tsPacket.getContinuityCounter();
 				if (tsPacket.isContainsPayload()) {
 					continuityFix++;
 				}
@@ -100,19 +106,18 @@ public class ContinuityFixer {
 		if (!firstSource) {
 			tsPacket.setContinuityCounter((tsPacket.getContinuityCounter() + continuityFixes.get(pid)) % 16);
 		}
+		continuityCounters.put(pid, tsPacket.getContinuityCounter());
 		fixPTS(tsPacket, pid);
 		fixPCR(tsPacket, pid);
 	}
 
 	private void fixPCR(MTSPacket tsPacket, int pid) {
-		if (tsPacket.isAdaptationFieldExist() && tsPacket.getAdaptationField() != null) {
-			if (tsPacket.getAdaptationField().isPcrFlag()) {
-				if (!firstPCRsOfCurrentSource.containsKey(pid)) {
-					firstPCRsOfCurrentSource.put(pid, tsPacket.getAdaptationField().getPcr().getValue());
-				}
-				rewritePCR(tsPacket);
-				pcrPackets.put(pid, tsPacket);
+		if (tsPacket.hasPcr()) {
+			if (!firstPCRsOfCurrentSource.containsKey(pid)) {
+				firstPCRsOfCurrentSource.put(pid, tsPacket.getPcrValue());
 			}
+			rewritePCR(tsPacket);
+			pcrs.put(pid, tsPacket.getPcrValue());
 		}
 	}
 
@@ -131,6 +136,8 @@ public class ContinuityFixer {
 					if (!firstSource) {
 						long newPts = Math.round(pts + (getTimeGap(pid) / 300.0) + 100 * ((27_000_000 / 300.0) / 1_000));
 
+						tsPacket.ensureWritable();
+						payload = tsPacket.getPayload();
 						payload.put(9, (byte) (0x20 | ((newPts & 0x1C0000000l) >> 29) | 0x1));
 						payload.putShort(10, (short) (0x1 | ((newPts & 0x3FFF8000) >> 14)));
 						payload.putShort(12, (short) (0x1 | ((newPts & 0x7FFF) << 1)));
@@ -201,8 +208,8 @@ public class ContinuityFixer {
 			return;
 		}
 		long timeGap = getTimeGap(tsPacket.getPid());
-		long pcr = tsPacket.getAdaptationField().getPcr().getValue();
+		long pcr = tsPacket.getPcrValue();
 		long newPcr = pcr + timeGap + 100 * ((27_000_000) / 1_000);
-		tsPacket.getAdaptationField().getPcr().setValue(newPcr);
+		tsPacket.setPcrValue(newPcr);
 	}
 }
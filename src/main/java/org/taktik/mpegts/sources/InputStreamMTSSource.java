@@ -2,30 +2,47 @@ package org.taktik.mpegts.sources;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 
 import com.google.common.base.Preconditions;
-import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+import org.taktik.mpegts.PacketPool;
 
 public class InputStreamMTSSource extends AbstractMTSSource {
+	private static final int BUFFER_SIZE = 64 * 1024;
 
 	private InputStream inputStream;
+	private final PacketReader reader;
 
-	private InputStreamMTSSource(InputStream inputStream) throws IOException {
+	private InputStreamMTSSource(InputStream inputStream, PacketPool packetPool) throws IOException {
+		super(packetPool);
 		this.inputStream = inputStream;
+		this.reader = new PacketReader(Channels.newChannel(inputStream), BUFFER_SIZE);
 	}
 
 	@Override
 	protected MTSPacket nextPacketInternal() throws IOException {
-		byte[] barray = new byte[Constants.MPEGTS_PACKET_SIZE];
-		if (inputStream.read(barray) != Constants.MPEGTS_PACKET_SIZE) {
-			inputStream.close();
-			return null;
-		}
+		return reader.nextPacket(this);
+	}
+
+	@Override
+	protected int nextPacketsInternal(PacketBatch batch) throws IOException {
+		return reader.nextPackets(this, batch);
+	}
 
-		// Parse the packet
-		return new MTSPacket(ByteBuffer.wrap(barray));
+	/**
+	 * @return the number of times the source lost sync with the packet boundaries
+	 */
+	public long getLostSyncCount() {
+		return reader.getLostSyncCount();
+	}
+
+	/**
+	 * @return the number of bytes skipped while looking for packet boundaries
+	 */
+	public long getSkippedBytes() {
+		return reader.getSkippedBytes();
 	}
 
 	@Override
@@ -41,6 +58,7 @@ public class InputStreamMTSSource extends AbstractMTSSource {
 
 	public static class InputStreamMTSSourceBuilder {
 		private InputStream inputStream;
+		private PacketPool packetPool;
 
 		private InputStreamMTSSourceBuilder() {
 		}
@@ -50,9 +68,14 @@ public class InputStreamMTSSource extends AbstractMTSSource {
 			return this;
 		}
 
+		public InputStreamMTSSourceBuilder setPacketPool(PacketPool packetPool) {
+			this.packetPool = packetPool;
+			return this;
+		}
+
 		public InputStreamMTSSource build() throws IOException {
 			Preconditions.checkNotNull(inputStream, "InputStream cannot be null");
-			return new InputStreamMTSSource(inputStream);
+			return new InputStreamMTSSource(inputStream, packetPool);
 		}
 	}
 }
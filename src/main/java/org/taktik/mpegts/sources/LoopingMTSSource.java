@@ -1,6 +1,7 @@
 package org.taktik.mpegts.sources;
 
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -31,6 +32,19 @@ public class LoopingMTSSource extends AbstractMTSSource{
 		return packet;
 	}
 
+	@Override
+	protected int nextPacketsInternal(PacketBatch batch) throws Exception {
+		int count = source.nextPackets(batch);
+		if (count == 0) {
+			currentLoop++;
+			if (maxLoops == null || (currentLoop <= maxLoops)) {
+				source.reset();
+				count = source.nextPackets(batch);
+			}
+		}
+		return count;
+	}
+
 	@Override
 	protected void closeInternal() throws Exception {
 		source.close();
@@ -1,8 +1,26 @@
 package org.taktik.mpegts.sources;
 
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
 
 public interface MTSSource {
 	public MTSPacket nextPacket() throws Exception;
+
+	/**
+	 * Reads packets until the batch is full or the source is exhausted.
+	 *
+	 * @param batch The batch to fill
+	 * @return the number of packets added, zero only when the source is exhausted
+	 */
+	public default int nextPackets(PacketBatch batch) throws Exception {
+		int count = 0;
+		MTSPacket packet;
+		while (!batch.isFull() && (packet = nextPacket()) != null) {
+			batch.add(packet);
+			count++;
+		}
+		return count;
+	}
+
 	public void close() throws Exception;
 }
@@ -9,6 +9,7 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 
 import com.google.common.io.ByteSource;
+import org.taktik.ioutils.ReadAheadChannel;
 
 public class MTSSources {
 	public static MTSSource fromSources(MTSSource... sources) {
@@ -45,6 +46,20 @@ public class MTSSources {
 				.build();
 	}
 
+	public static ResettableMTSSource fromReadAhead(File file) throws IOException {
+		return SeekableByteChannelMTSSource.builder()
+				.setByteChannel(ReadAheadChannel.builder()
+						.setChannel(FileChannel.open(file.toPath()))
+						.build())
+				.build();
+	}
+
+	public static ResettableMTSSource fromMappedFile(File file) throws IOException {
+		return MappedFileMTSSource.builder()
+				.setFile(file)
+				.build();
+	}
+
 	public static ResettableMTSSource from(ByteSource byteSource) throws IOException {
 		return ByteSourceMTSSource.builder()
 				.setByteSource(byteSource)
@@ -57,6 +72,13 @@ public class MTSSources {
 				.build();
 	}
 
+	public static MTSSource fromUDP(String address, int port) throws IOException {
+		return UDPMTSSource.builder()
+				.setAddress(address)
+				.setPort(port)
+				.build();
+	}
+
 	public static MTSSource loop(ResettableMTSSource source) {
 		return LoopingMTSSource.builder()
 				.setSource(source)
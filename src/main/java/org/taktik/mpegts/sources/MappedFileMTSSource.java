@@ -0,0 +1,146 @@
+package org.taktik.mpegts.sources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+
+/**
+ * A {@link ResettableMTSSource} reading a file through a read-only memory mapping.
+ * <br>
+ * Packets are zero-copy slices of the mapping: they are copied to the heap only if they get modified
+ * (see {@link MTSPacket#ensureWritable()}). A {@link MultiMTSSource} fixing continuity rewrites every packet from the
+ * second source or loop on: it copies them to packets of its pool instead (see
+ * {@link MultiMTSSource.MultiMTSSourceBuilder#setPacketPool(org.taktik.mpegts.PacketPool)}), zero-copy only applies to
+ * the first pass. Files larger than the window size are mapped one window at a time.
+ * When the whole file fits in one window, {@link #reset()} only rewinds the mapping.
+ */
+public class MappedFileMTSSource extends AbstractMTSSource implements ResettableMTSSource {
+	static final Logger log = LoggerFactory.getLogger("source");
+
+	private static final long DEFAULT_WINDOW_SIZE = Constants.MPEGTS_PACKET_SIZE * 350_000L; // ~64MB
+
+	private final FileChannel fileChannel;
+	private final long windowSize;
+	private final long fileSize;
+
+	private MappedByteBuffer mapping;
+	private long windowStart;
+	private final PacketSync sync = new PacketSync();
+
+	private MappedFileMTSSource(FileChannel fileChannel, long windowSize) throws IOException {
+		this.fileChannel = fileChannel;
+		this.windowSize = windowSize;
+		this.fileSize = fileChannel.size();
+		map(0);
+	}
+
+	private void map(long position) throws IOException {
+		long length = Math.min(windowSize, fileSize - position);
+		mapping = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		windowStart = position;
+	}
+
+	@Override
+	public void reset() throws IOException {
+		sync.reset();
+		if (windowStart == 0) {
+			mapping.rewind();
+		} else {
+			map(0);
+		}
+	}
+
+	@Override
+	protected MTSPacket nextPacketInternal() throws IOException {
+		while (true) {
+			if (mapping.remaining() < Constants.MPEGTS_PACKET_SIZE) {
+				long position = windowStart + mapping.position();
+				if (fileSize - position < Constants.MPEGTS_PACKET_SIZE) {
+					sync.skip(mapping, mapping.remaining());
+					return null;
+				}
+				// Next window, starting with the remaining bytes of the current one
+				map(position);
+			}
+			boolean endOfFile = windowStart + mapping.limit() == fileSize;
+			if (!sync.sync(mapping, endOfFile)) {
+				if (!endOfFile && mapping.hasRemaining()) {
+					// Alignment cannot be confirmed before the end of the window, map the next one from here
+					map(windowStart + mapping.position());
+				}
+				continue;
+			}
+			int position = mapping.position();
+			ByteBuffer packetBuffer = mapping.slice();
+			packetBuffer.limit(Constants.MPEGTS_PACKET_SIZE);
+			mapping.position(position + Constants.MPEGTS_PACKET_SIZE);
+			try {
+				return new MTSPacket(packetBuffer);
+			} catch (Exception e) {
+				log.warn("Error parsing packet", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of times the source lost sync with the packet boundaries
+	 */
+	public long getLostSyncCount() {
+		return sync.getLostSyncCount();
+	}
+
+	/**
+	 * @return the number of bytes skipped while looking for packet boundaries
+	 */
+	public long getSkippedBytes() {
+		return sync.getSkippedBytes();
+	}
+
+	@Override
+	protected void closeInternal() throws Exception {
+		mapping = null;
+		fileChannel.close();
+	}
+
+	public static MappedFileMTSSourceBuilder builder() {
+		return new MappedFileMTSSourceBuilder();
+	}
+
+	public static class MappedFileMTSSourceBuilder {
+		private FileChannel fileChannel;
+		private long windowSize = DEFAULT_WINDOW_SIZE;
+
+		private MappedFileMTSSourceBuilder() {
+		}
+
+		public MappedFileMTSSourceBuilder setFile(File file) throws IOException {
+			this.fileChannel = FileChannel.open(file.toPath());
+			return this;
+		}
+
+		public MappedFileMTSSourceBuilder setFileChannel(FileChannel fileChannel) {
+			this.fileChannel = fileChannel;
+			return this;
+		}
+
+		public MappedFileMTSSourceBuilder setWindowSize(long windowSize) {
+			this.windowSize = windowSize;
+			return this;
+		}
+
+		public MappedFileMTSSource build() throws IOException {
+			Preconditions.checkNotNull(fileChannel, "fileChannel cannot be null");
+			// A window must be able to hold the packets confirming sync
+			Preconditions.checkArgument(windowSize >= PacketSync.SYNC_PACKETS * Constants.MPEGTS_PACKET_SIZE && windowSize <= Integer.MAX_VALUE, "Invalid window size");
+			return new MappedFileMTSSource(fileChannel, windowSize);
+		}
+	}
+}
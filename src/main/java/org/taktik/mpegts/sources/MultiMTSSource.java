@@ -8,6 +8,8 @@ import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+import org.taktik.mpegts.PacketPool;
 
 public class MultiMTSSource extends AbstractMTSSource {
 	static final Logger log = LoggerFactory.getLogger("multisource");
@@ -22,6 +24,11 @@ public class MultiMTSSource extends AbstractMTSSource {
 	private boolean closeCurrentSource;
 
 	protected MultiMTSSource(boolean fixContinuity, int maxloops, Collection<MTSSource> sources) {
+		this(fixContinuity, maxloops, sources, null);
+	}
+
+	protected MultiMTSSource(boolean fixContinuity, int maxloops, Collection<MTSSource> sources, PacketPool packetPool) {
+		super(packetPool);
 		Preconditions.checkArgument(sources.size() > 0, "Multisource must at least contain one source");
 		Preconditions.checkArgument(maxloops != 0, "Cannot loop zero times");
 		this.sources = Lists.newArrayList(sources);
@@ -59,7 +66,7 @@ public class MultiMTSSource extends AbstractMTSSource {
 		MTSPacket tsPacket = currentSource.nextPacket();
 		if (tsPacket != null) {
 			if (fixContinuity) {
-				continuityFixer.fixContinuity(tsPacket);
+				tsPacket = fixContinuity(tsPacket);
 			}
 			return tsPacket;
 		} else {
@@ -68,6 +75,40 @@ public class MultiMTSSource extends AbstractMTSSource {
 		}
 	}
 
+	@Override
+	protected int nextPacketsInternal(PacketBatch batch) throws Exception {
+		while (currentSource != null) {
+			int start = batch.size();
+			int count = currentSource.nextPackets(batch);
+			if (count > 0) {
+				if (fixContinuity) {
+					for (int i = start; i < batch.size(); i++) {
+						MTSPacket packet = batch.get(i);
+						MTSPacket fixed = fixContinuity(packet);
+						if (fixed != packet) {
+							batch.set(i, fixed);
+						}
+					}
+				}
+				return count;
+			}
+			nextSource();
+		}
+		return 0;
+	}
+
+	private MTSPacket fixContinuity(MTSPacket packet) {
+		if (continuityFixer.rewritesPackets() && packet.getBuffer().isReadOnly()) {
+			// A read-only packet (memory-mapped file) would be copied to a new heap buffer when rewritten,
+			// copy it to a packet of the pool instead
+			MTSPacket copy = newPacket(packet.getBuffer().duplicate());
+			packet.release();
+			packet = copy;
+		}
+		continuityFixer.fixContinuity(packet);
+		return packet;
+	}
+
 	public synchronized void updateSources(List<MTSSource> newSources) {
 		checkLoopingPossible(newSources);
 		List<MTSSource> oldSources = this.sources;
@@ -143,6 +184,7 @@ public class MultiMTSSource extends AbstractMTSSource {
 		private List<MTSSource> sources = Lists.newArrayList();
 		boolean fixContinuity = false;
 		private int maxLoops = 1;
+		private PacketPool packetPool;
 
 		private MultiMTSSourceBuilder() {
 		}
@@ -172,6 +214,15 @@ public class MultiMTSSource extends AbstractMTSSource {
 			return this;
 		}
 
+		/**
+		 * Pool of the packets copied when fixing the continuity of read-only packets, such as the ones of a
+		 * {@link MappedFileMTSSource}. Without a pool, they are allocated.
+		 */
+		public MultiMTSSourceBuilder setPacketPool(PacketPool packetPool) {
+			this.packetPool = packetPool;
+			return this;
+		}
+
 		public MultiMTSSourceBuilder loop() {
 			this.maxLoops = -1;
 			return this;
@@ -188,7 +239,7 @@ public class MultiMTSSource extends AbstractMTSSource {
 		}
 
 		public MultiMTSSource build() {
-			return new MultiMTSSource(fixContinuity, maxLoops, sources);
+			return new MultiMTSSource(fixContinuity, maxLoops, sources, packetPool);
 		}
 	}
 }
@@ -0,0 +1,133 @@
+package org.taktik.mpegts.sources;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.ioutils.NIOUtils;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+
+/**
+ * Reads aligned MPEG-TS packets from a channel through a single, reused, compacting buffer.
+ * Packet alignment is kept by a {@link PacketSync}.
+ */
+class PacketReader {
+	static final Logger log = LoggerFactory.getLogger("source");
+
+	private ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+	private boolean endOfStream;
+	private final PacketSync sync = new PacketSync();
+
+	PacketReader(ReadableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(Math.max(bufferSize, PacketSync.SYNC_PACKETS * Constants.MPEGTS_PACKET_SIZE));
+		this.buffer.flip();
+	}
+
+	/**
+	 * Discards buffered data, to be called after the channel has been repositioned.
+	 */
+	void reset() {
+		buffer.clear();
+		buffer.flip();
+		endOfStream = false;
+		sync.reset();
+	}
+
+	/**
+	 * Discards buffered data and switches to another channel.
+	 */
+	void reset(ReadableByteChannel channel) {
+		this.channel = channel;
+		reset();
+	}
+
+	/**
+	 * Reads from the channel until the buffer is full or the end of stream is reached.
+	 *
+	 * @return the number of bytes read
+	 */
+	int fill() throws IOException {
+		if (endOfStream) {
+			return 0;
+		}
+		buffer.compact();
+		int read = NIOUtils.read(channel, buffer);
+		// NIOUtils.read only stops early at end of stream
+		endOfStream = buffer.hasRemaining();
+		buffer.flip();
+		return read;
+	}
+
+	/**
+	 * Finds the next packet. The returned buffer is positioned at the start of the packet, with at least
+	 * 188 bytes remaining: the caller must consume the packet by advancing the position by 188 bytes.
+	 *
+	 * @return the internal buffer, or null at end of stream
+	 */
+	ByteBuffer next() throws IOException {
+		while (true) {
+			if (buffer.remaining() < Constants.MPEGTS_PACKET_SIZE) {
+				if (endOfStream) {
+					sync.skip(buffer, buffer.remaining());
+					return null;
+				}
+				fill();
+				continue;
+			}
+			if (sync.sync(buffer, endOfStream)) {
+				return buffer;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * Copies the next packet into a new packet of the source, skipping packets that cannot be parsed.
+	 *
+	 * @return the packet, or null at end of stream
+	 */
+	MTSPacket nextPacket(AbstractMTSSource source) throws IOException {
+		ByteBuffer buffer;
+		while ((buffer = next()) != null) {
+			try {
+				return source.newPacket(buffer);
+			} catch (Exception e) {
+				log.warn("Error parsing packet", e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copies packets into new packets of the source until the batch is full or the end of stream is reached.
+	 *
+	 * @return the number of packets added to the batch
+	 */
+	int nextPackets(AbstractMTSSource source, PacketBatch batch) throws IOException {
+		int count = 0;
+		ByteBuffer buffer;
+		while (!batch.isFull() && (buffer = next()) != null) {
+			try {
+				batch.add(source.newPacket(buffer));
+				count++;
+			} catch (Exception e) {
+				log.warn("Error parsing packet", e);
+			}
+		}
+		return count;
+	}
+
+	long getLostSyncCount() {
+		return sync.getLostSyncCount();
+	}
+
+	long getSkippedBytes() {
+		return sync.getSkippedBytes();
+	}
+}
@@ -0,0 +1,141 @@
+package org.taktik.mpegts.sources;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+
+/**
+ * Keeps track of packet alignment in buffered data, for sources reading raw streams.
+ * <br>
+ * While in sync, each packet only has to start with a sync byte. When sync is lost, the next packet is found at a
+ * position where {@value #SYNC_PACKETS} consecutive packets start with a sync byte, scanning 8 bytes at a time.
+ * Sync losses and skipped bytes are counted rather than logged.
+ */
+class PacketSync {
+	static final Logger log = LoggerFactory.getLogger("source");
+
+	static final int SYNC_PACKETS = 3;
+
+	private static final long MARKERS = 0x4747474747474747L;
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+
+	private boolean synced;
+
+	private long lostSyncCount;
+	private long skippedBytes;
+
+	/**
+	 * Forgets the current alignment, to be called when the data no longer follows the previous one.
+	 */
+	void reset() {
+		synced = false;
+	}
+
+	/**
+	 * Positions the buffer on the next packet. At least 188 bytes must remain in the buffer.
+	 *
+	 * @param endOfData whether no data follows the limit of the buffer
+	 * @return true if the buffer is positioned on a packet, false if more data is needed: the bytes that may still
+	 * start a packet are left in the buffer
+	 */
+	boolean sync(ByteBuffer buffer, boolean endOfData) {
+		int position = buffer.position();
+		if (buffer.get(position) == Constants.TS_MARKER && synced) {
+			return true;
+		}
+		if (synced) {
+			synced = false;
+			lostSyncCount++;
+			log.debug("Lost sync at byte {} of the buffer", position);
+		}
+		if (resync(buffer, endOfData)) {
+			synced = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Looks for {@value #SYNC_PACKETS} consecutive packets in the buffered data.
+	 *
+	 * @return true if the buffer is now positioned on a packet, false if more data is needed
+	 */
+	private boolean resync(ByteBuffer buffer, boolean endOfData) {
+		int start = buffer.position();
+		int limit = buffer.limit();
+		int candidate = start;
+		while ((candidate = findMarker(buffer, candidate, limit)) >= 0) {
+			if (candidate + Constants.MPEGTS_PACKET_SIZE > limit) {
+				// Incomplete packet, wait for more data unless there is none left
+				skip(buffer, (endOfData ? limit : candidate) - start);
+				return false;
+			}
+			boolean aligned = true;
+			boolean needMoreData = false;
+			for (int i = 1; i < SYNC_PACKETS; i++) {
+				int index = candidate + i * Constants.MPEGTS_PACKET_SIZE;
+				if (index >= limit) {
+					// Not enough data to confirm, accept the candidate only at end of data
+					needMoreData = !endOfData;
+					break;
+				}
+				if (buffer.get(index) != Constants.TS_MARKER) {
+					aligned = false;
+					break;
+				}
+			}
+			if (aligned) {
+				skip(buffer, candidate - start);
+				return !needMoreData;
+			}
+			candidate++;
+		}
+		// No sync byte left in the buffer
+		skip(buffer, limit - start);
+		return false;
+	}
+
+	/**
+	 * Finds the first sync byte between from (inclusive) and limit (exclusive), 8 bytes at a time.
+	 *
+	 * @return the index of the sync byte, or -1
+	 */
+	private static int findMarker(ByteBuffer buffer, int from, int limit) {
+		int i = from;
+		for (; i + 8 <= limit; i += 8) {
+			// Little-endian, so that the lowest flagged byte is the first match in memory
+			long word = Long.reverseBytes(buffer.getLong(i)) ^ MARKERS;
+			long found = (word - LOW_BITS) & ~word & HIGH_BITS;
+			if (found != 0) {
+				return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		for (; i < limit; i++) {
+			if (buffer.get(i) == Constants.TS_MARKER) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Skips bytes that cannot start a packet.
+	 */
+	void skip(ByteBuffer buffer, int count) {
+		if (count > 0) {
+			buffer.position(buffer.position() + count);
+			skippedBytes += count;
+		}
+	}
+
+	long getLostSyncCount() {
+		return lostSyncCount;
+	}
+
+	long getSkippedBytes() {
+		return skippedBytes;
+	}
+}
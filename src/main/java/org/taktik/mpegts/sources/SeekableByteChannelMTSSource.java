@@ -10,11 +10,12 @@ import org.slf4j.LoggerFactory;
 import org.taktik.ioutils.NIOUtils;
 import org.taktik.mpegts.Constants;
 import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketPool;
 
 public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<SeekableByteChannel> implements ResettableMTSSource {
 
-	private SeekableByteChannelMTSSource(SeekableByteChannel byteChannel) throws IOException {
-		super(byteChannel);
+	private SeekableByteChannelMTSSource(SeekableByteChannel byteChannel, PacketPool packetPool) throws IOException {
+		super(byteChannel, packetPool);
 	}
 
 	public static SeekableByteChannelMTSSourceBuilder builder() {
@@ -29,6 +30,7 @@ public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<S
 
 	public static class SeekableByteChannelMTSSourceBuilder {
 		private SeekableByteChannel byteChannel;
+		private PacketPool packetPool;
 
 		private SeekableByteChannelMTSSourceBuilder(){}
 
@@ -37,9 +39,14 @@ public class SeekableByteChannelMTSSource extends AbstractByteChannelMTSSource<S
 			return this;
 		}
 
+		public SeekableByteChannelMTSSourceBuilder setPacketPool(PacketPool packetPool) {
+			this.packetPool = packetPool;
+			return this;
+		}
+
 		public SeekableByteChannelMTSSource build() throws IOException {
 			Preconditions.checkNotNull(byteChannel, "byteChannel cannot be null");
-			return new SeekableByteChannelMTSSource(byteChannel);
+			return new SeekableByteChannelMTSSource(byteChannel, packetPool);
 		}
 	}
 }
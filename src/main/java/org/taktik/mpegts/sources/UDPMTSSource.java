@@ -0,0 +1,486 @@
+package org.taktik.mpegts.sources;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.taktik.mpegts.Constants;
+import org.taktik.mpegts.MTSPacket;
+import org.taktik.mpegts.PacketBatch;
+import org.taktik.mpegts.PacketPool;
+import org.taktik.mpegts.RTPHeader;
+
+/**
+ * A {@link MTSSource} receiving packets over UDP, either unicast or from a multicast group.
+ * <br>
+ * Datagrams are received into large blocks. Without a {@link PacketPool}, packets are zero-copy slices of these blocks: a
+ * block is never reused, it is left to the garbage collector once all its packets are gone, so that a relay allocates at
+ * the rate of the stream. With a pool, packets are copied into pooled packets, and a block is reused as soon as its
+ * datagrams have been read, which is right away unless datagrams are held for reordering.
+ * Datagrams whose length is not a multiple of 188 bytes are counted as malformed, and their packets not starting with a
+ * sync byte are dropped.
+ * <br>
+ * RTP encapsulated datagrams (RFC 2250) are detected and depacketized. Datagrams arriving out of order are held in
+ * a small reorder window until the missing ones arrive, or are considered lost when the window is full.
+ * <br>
+ * The source waits for data as long as needed, unless a receive timeout is set: the source then ends when no datagram
+ * arrives before the timeout.
+ */
+public class UDPMTSSource extends AbstractMTSSource {
+	static final Logger log = LoggerFactory.getLogger("source");
+
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+	private static final int NULL_PID = 0x1fff;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final int blockSize;
+	private final long receiveTimeout;
+
+	private ByteBuffer block;
+	// Packets of the last datagram not returned yet
+	private ByteBuffer datagram;
+	private final byte[] continuityCounters;
+
+	// RTP reordering, datagrams received ahead of the expected sequence number
+	private final ByteBuffer[] pending;
+	private final int[] pendingSequenceNumbers;
+	private int pendingCount;
+	private int expectedSequenceNumber = -1;
+	private int ssrc;
+
+	private long datagramCount;
+	private long packetCount;
+	private long malformedDatagramCount;
+	private long droppedPacketCount;
+	private long continuityErrorCount;
+	private long lostDatagramCount;
+	private long reorderedDatagramCount;
+	private long lateDatagramCount;
+
+	private UDPMTSSource(DatagramChannel channel, int blockSize, long receiveTimeout, int reorderWindow, PacketPool packetPool) throws IOException {
+		super(packetPool);
+		this.channel = channel;
+		this.blockSize = blockSize;
+		this.receiveTimeout = receiveTimeout;
+		this.selector = Selector.open();
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+		this.block = ByteBuffer.allocate(blockSize);
+		this.datagram = ByteBuffer.allocate(0);
+		this.continuityCounters = new byte[NULL_PID + 1];
+		Arrays.fill(continuityCounters, (byte) -1);
+		this.pending = new ByteBuffer[reorderWindow];
+		this.pendingSequenceNumbers = new int[reorderWindow];
+	}
+
+	@Override
+	protected MTSPacket nextPacketInternal() throws IOException {
+		MTSPacket packet;
+		while ((packet = nextBufferedPacket()) == null) {
+			if (!receive(true)) {
+				return null;
+			}
+		}
+		return packet;
+	}
+
+	/**
+	 * Fills the batch with the datagrams already received, only waiting for data when the batch would be empty.
+	 */
+	@Override
+	protected int nextPacketsInternal(PacketBatch batch) throws IOException {
+		int count = 0;
+		while (!batch.isFull()) {
+			MTSPacket packet = nextBufferedPacket();
+			if (packet != null) {
+				batch.add(packet);
+				count++;
+			} else if (!receive(count == 0)) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	private MTSPacket nextBufferedPacket() {
+		MTSPacket packet;
+		while ((packet = nextDatagramPacket()) == null) {
+			ByteBuffer next = takePending();
+			if (next == null) {
+				return null;
+			}
+			datagram = next;
+		}
+		return packet;
+	}
+
+	private MTSPacket nextDatagramPacket() {
+		while (datagram.remaining() >= Constants.MPEGTS_PACKET_SIZE) {
+			int position = datagram.position();
+			ByteBuffer packetBuffer = datagram.slice();
+			packetBuffer.limit(Constants.MPEGTS_PACKET_SIZE);
+			datagram.position(position + Constants.MPEGTS_PACKET_SIZE);
+			if (packetBuffer.get(0) != Constants.TS_MARKER) {
+				droppedPacketCount++;
+				continue;
+			}
+			try {
+				MTSPacket packet = packetPool != null ? newPacket(packetBuffer) : new MTSPacket(packetBuffer);
+				checkContinuity(packet);
+				packetCount++;
+				return packet;
+			} catch (Exception e) {
+				droppedPacketCount++;
+				log.debug("Error parsing packet", e);
+			}
+		}
+		return null;
+	}
+
+	private void checkContinuity(MTSPacket packet) {
+		int pid = packet.getPid();
+		if (pid == NULL_PID || !packet.isContainsPayload()) {
+			return;
+		}
+		int continuityCounter = packet.getContinuityCounter();
+		int last = continuityCounters[pid];
+		// A repeated counter is a duplicate packet, which is allowed
+		if (last >= 0 && continuityCounter != last && continuityCounter != ((last + 1) & 0x0f) && !packet.isDiscontinuityIndicator()) {
+			continuityErrorCount++;
+		}
+		continuityCounters[pid] = (byte) continuityCounter;
+	}
+
+	/**
+	 * Receives the next datagram.
+	 *
+	 * @param wait whether to wait for a datagram if none is available
+	 * @return true if a datagram was received, or if datagrams held for reordering were released after a timeout
+	 */
+	private boolean receive(boolean wait) throws IOException {
+		if (block.remaining() < MAX_DATAGRAM_SIZE) {
+			if (packetPool != null && pendingCount == 0 && datagram.remaining() < Constants.MPEGTS_PACKET_SIZE) {
+				// Packets are copies, and every datagram of the block has been read
+				block.clear();
+			} else {
+				// Packets or held datagrams of the previous block may still be in use, start a new one
+				block = ByteBuffer.allocate(blockSize);
+			}
+		}
+		int start = block.position();
+		while (channel.receive(block) == null) {
+			if (!wait) {
+				return false;
+			}
+			selector.selectedKeys().clear();
+			if (selector.select(receiveTimeout) == 0 && receiveTimeout > 0) {
+				if (pendingCount > 0) {
+					// The missing datagrams will not come
+					skipGap();
+					return true;
+				}
+				log.info("No datagram received for {} ms", receiveTimeout);
+				return false;
+			}
+		}
+		datagramCount++;
+		int length = block.position() - start;
+		int sequenceNumber = -1;
+		if (RTPHeader.isRTP(block, start, length)) {
+			int headerLength = RTPHeader.getHeaderLength(block, start);
+			int paddingLength = RTPHeader.getPaddingLength(block, start, length);
+			if (headerLength + paddingLength > length) {
+				malformedDatagramCount++;
+				return true;
+			}
+			sequenceNumber = RTPHeader.getSequenceNumber(block, start);
+			int datagramSsrc = RTPHeader.getSsrc(block, start);
+			if (datagramSsrc != ssrc || expectedSequenceNumber < 0) {
+				// New RTP stream
+				Arrays.fill(pending, null);
+				pendingCount = 0;
+				ssrc = datagramSsrc;
+				expectedSequenceNumber = sequenceNumber;
+			}
+			length -= headerLength + paddingLength;
+			start += headerLength;
+		}
+		if (length % Constants.MPEGTS_PACKET_SIZE != 0) {
+			malformedDatagramCount++;
+		}
+		ByteBuffer received = block.duplicate();
+		received.position(start);
+		received.limit(start + length);
+		if (sequenceNumber < 0) {
+			datagram = received;
+		} else {
+			accept(sequenceNumber, received);
+		}
+		return true;
+	}
+
+	private void accept(int sequenceNumber, ByteBuffer received) {
+		int distance = (sequenceNumber - expectedSequenceNumber) & 0xffff;
+		if (distance == 0) {
+			datagram = received;
+			expectedSequenceNumber = (sequenceNumber + 1) & 0xffff;
+		} else if (distance >= 0x8000) {
+			// Duplicate, or arrived after being considered lost
+			lateDatagramCount++;
+		} else if (pending.length == 0) {
+			lostDatagramCount += distance;
+			datagram = received;
+			expectedSequenceNumber = (sequenceNumber + 1) & 0xffff;
+		} else {
+			for (int i = 0; i < pendingCount; i++) {
+				if (pendingSequenceNumbers[i] == sequenceNumber) {
+					lateDatagramCount++;
+					return;
+				}
+			}
+			pending[pendingCount] = received;
+			pendingSequenceNumbers[pendingCount] = sequenceNumber;
+			pendingCount++;
+			if (pendingCount == pending.length) {
+				skipGap();
+			}
+		}
+	}
+
+	/**
+	 * @return the held datagram with the expected sequence number, if any
+	 */
+	private ByteBuffer takePending() {
+		for (int i = 0; i < pendingCount; i++) {
+			if (pendingSequenceNumbers[i] == expectedSequenceNumber) {
+				ByteBuffer result = pending[i];
+				pendingCount--;
+				pending[i] = pending[pendingCount];
+				pendingSequenceNumbers[i] = pendingSequenceNumbers[pendingCount];
+				pending[pendingCount] = null;
+				expectedSequenceNumber = (expectedSequenceNumber + 1) & 0xffff;
+				reorderedDatagramCount++;
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gives up on the missing datagrams, up to the first held one.
+	 */
+	private void skipGap() {
+		int gap = 0x10000;
+		for (int i = 0; i < pendingCount; i++) {
+			gap = Math.min(gap, (pendingSequenceNumbers[i] - expectedSequenceNumber) & 0xffff);
+		}
+		lostDatagramCount += gap;
+		expectedSequenceNumber = (expectedSequenceNumber + gap) & 0xffff;
+	}
+
+	/**
+	 * @return the number of datagrams received
+	 */
+	public long getDatagramCount() {
+		return datagramCount;
+	}
+
+	/**
+	 * @return the number of packets returned by the source
+	 */
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * @return the number of datagrams whose length is not a multiple of 188 bytes
+	 */
+	public long getMalformedDatagramCount() {
+		return malformedDatagramCount;
+	}
+
+	/**
+	 * @return the number of packets dropped because they did not start with a sync byte or could not be parsed
+	 */
+	public long getDroppedPacketCount() {
+		return droppedPacketCount;
+	}
+
+	/**
+	 * @return the number of continuity counter jumps, usually packets lost on the network
+	 */
+	public long getContinuityErrorCount() {
+		return continuityErrorCount;
+	}
+
+	/**
+	 * @return the number of RTP datagrams missing from the sequence
+	 */
+	public long getLostDatagramCount() {
+		return lostDatagramCount;
+	}
+
+	/**
+	 * @return the number of RTP datagrams received out of order and put back in sequence
+	 */
+	public long getReorderedDatagramCount() {
+		return reorderedDatagramCount;
+	}
+
+	/**
+	 * @return the number of RTP datagrams dropped because they were duplicates, or arrived after being considered lost
+	 */
+	public long getLateDatagramCount() {
+		return lateDatagramCount;
+	}
+
+	@Override
+	protected void closeInternal() throws Exception {
+		try {
+			selector.close();
+		} finally {
+			channel.close();
+		}
+	}
+
+	public static UDPMTSSourceBuilder builder() {
+		return new UDPMTSSourceBuilder();
+	}
+
+	public static class UDPMTSSourceBuilder {
+		private String address;
+		private int port;
+		private String networkInterface;
+		private int receiveBufferSize = 4 * 1024 * 1024;
+		private int blockSize = 1024 * 1024;
+		private long receiveTimeout = 0;
+		private int reorderWindow = 4;
+		private PacketPool packetPool;
+
+		private UDPMTSSourceBuilder() {
+		}
+
+		/**
+		 * Multicast group to join, or local address to listen on. Listens on all addresses by default.
+		 */
+		public UDPMTSSourceBuilder setAddress(String address) {
+			this.address = address;
+			return this;
+		}
+
+		public UDPMTSSourceBuilder setPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Name of the network interface used to join the multicast group. By default, the first interface
+		 * that is up and supports multicast is used.
+		 */
+		public UDPMTSSourceBuilder setNetworkInterface(String networkInterface) {
+			this.networkInterface = networkInterface;
+			return this;
+		}
+
+		/**
+		 * Socket receive buffer size (SO_RCVBUF), defaults to 4MB. The operating system may cap it.
+		 */
+		public UDPMTSSourceBuilder setReceiveBufferSize(int receiveBufferSize) {
+			this.receiveBufferSize = receiveBufferSize;
+			return this;
+		}
+
+		/**
+		 * Size of the blocks datagrams are received into, defaults to 1MB.
+		 */
+		public UDPMTSSourceBuilder setBlockSize(int blockSize) {
+			this.blockSize = blockSize;
+			return this;
+		}
+
+		/**
+		 * Time in milliseconds after which the source ends if no datagram is received, 0 (the default) to wait forever.
+		 */
+		public UDPMTSSourceBuilder setReceiveTimeout(long receiveTimeout) {
+			this.receiveTimeout = receiveTimeout;
+			return this;
+		}
+
+		/**
+		 * Number of RTP datagrams held while waiting for a missing one, 4 by default. 0 disables reordering.
+		 */
+		public UDPMTSSourceBuilder setReorderWindow(int reorderWindow) {
+			this.reorderWindow = reorderWindow;
+			return this;
+		}
+
+		/**
+		 * Copies packets into pooled packets, so that receive blocks can be reused. Packets are zero-copy slices of
+		 * the blocks by default.
+		 */
+		public UDPMTSSourceBuilder setPacketPool(PacketPool packetPool) {
+			this.packetPool = packetPool;
+			return this;
+		}
+
+		public UDPMTSSource build() throws IOException {
+			Preconditions.checkArgument(port > 0 && port < 65536, "Invalid port");
+			Preconditions.checkArgument(blockSize >= MAX_DATAGRAM_SIZE, "blockSize must be at least %s", MAX_DATAGRAM_SIZE);
+			Preconditions.checkArgument(receiveTimeout >= 0, "receiveTimeout cannot be negative");
+			Preconditions.checkArgument(reorderWindow >= 0, "reorderWindow cannot be negative");
+			InetAddress inetAddress = address != null ? InetAddress.getByName(address) : null;
+			boolean multicast = inetAddress != null && inetAddress.isMulticastAddress();
+
+			DatagramChannel channel = DatagramChannel.open(inetAddress instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+			try {
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+				if (multicast) {
+					channel.bind(new InetSocketAddress(port));
+					channel.join(inetAddress, getNetworkInterface());
+				} else if (inetAddress != null) {
+					channel.bind(new InetSocketAddress(inetAddress, port));
+				} else {
+					channel.bind(new InetSocketAddress(port));
+				}
+				if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < receiveBufferSize) {
+					log.warn("Receive buffer size capped to {} bytes", channel.getOption(StandardSocketOptions.SO_RCVBUF));
+				}
+				return new UDPMTSSource(channel, blockSize, receiveTimeout, reorderWindow, packetPool);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private NetworkInterface getNetworkInterface() throws IOException {
+			if (networkInterface != null) {
+				NetworkInterface result = NetworkInterface.getByName(networkInterface);
+				Preconditions.checkArgument(result != null, "Unknown network interface %s", networkInterface);
+				return result;
+			}
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces.hasMoreElements()) {
+				NetworkInterface candidate = interfaces.nextElement();
+				if (candidate.isUp() && candidate.supportsMulticast()) {
+					return candidate;
+				}
+			}
+			throw new IOException("No network interface supporting multicast");
+		}
+	}
+}